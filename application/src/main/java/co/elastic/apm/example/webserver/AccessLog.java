@@ -0,0 +1,264 @@
+package co.elastic.apm.example.webserver;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The log the example servers write requests to, instead of calling
+ * System.out for every request and header line, which under load makes
+ * the synchronized PrintStream the bottleneck.
+ * <p>
+ * Lines below the configured level are discarded by the caller without
+ * being built (check {@link #isEnabled} before building an expensive line).
+ * By default lines are queued in a bounded ring buffer and written in batches
+ * by a background thread. If the buffer is full, the line is dropped rather
+ * than making the request wait; the number dropped is counted and reported
+ * in the log. A synchronous mode writes each line on the calling thread,
+ * which is easier to follow when debugging.
+ * <p>
+ * The ring buffer takes no lock on the request threads: a line claims the next
+ * sequence number with a CAS, and is stored in the slot that number maps to,
+ * unless that would wrap onto lines not yet written. The writer takes the lines
+ * in sequence order, stopping at a slot whose line isn't stored yet, and when
+ * there are none claimed it parks for a while rather than being woken by every line.
+ * <p>
+ * Each line includes the trace id of the span active when it was logged (or
+ * "-" if there is none), so the log can be correlated with the APM transactions.
+ * See {@link #currentTraceId()} for how that is obtained.
+ * <p>
+ * The default log is configured with the system properties
+ * `example.access_log.level` (OFF, ERROR, INFO or DEBUG, default INFO) and
+ * `example.access_log.async` (default true), and writes to System.out.
+ */
+public final class AccessLog {
+    public enum Level {
+        OFF, ERROR, INFO, DEBUG
+    }
+
+    private static final int DefaultCapacity = 8192;
+    private static final int MaxBatchSize = 512;
+    private static final long IdleParkNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final AccessLog Default = create(
+            Level.valueOf(System.getProperty("example.access_log.level", "INFO")),
+            Boolean.parseBoolean(System.getProperty("example.access_log.async", "true")),
+            DefaultCapacity,
+            lines -> System.out.print(lines));
+
+    private final Level level;
+    private final Consumer<String> output;
+    private final RingBuffer ringBuffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+
+    private AccessLog(Level level, Consumer<String> output, RingBuffer ringBuffer) {
+        this.level = level;
+        this.output = output;
+        this.ringBuffer = ringBuffer;
+    }
+
+    /**
+     * @return the log configured by the system properties, writing to System.out
+     */
+    public static AccessLog get() {
+        return Default;
+    }
+
+    /**
+     * @param level    the most detailed level to log
+     * @param async    true to write lines in batches on a background thread, dropping
+     *                 them when more than `capacity` are waiting, false to write each
+     *                 line on the calling thread
+     * @param capacity the number of lines that can wait to be written, rounded up to a power of two
+     * @param output   receives one or more complete lines at a time
+     */
+    public static AccessLog create(Level level, boolean async, int capacity, Consumer<String> output) {
+        if (!async) {
+            return new AccessLog(level, output, null);
+        }
+        AccessLog log = new AccessLog(level, output, new RingBuffer(capacity));
+        Thread writer = new Thread(log::writeBatches, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::writeWaitingLines, "access-log-flush"));
+        return log;
+    }
+
+    /**
+     * This returns null, but the plugin instruments it to return the trace id of
+     * the current span, so the application doesn't need a dependency on a tracing API
+     *
+     * @return the trace id of the active span, or null if there is none
+     */
+    public static String currentTraceId() {
+        return null;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) <= 0 && level != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        // the trace id has to be read on the thread handling the request
+        Line line = new Line(System.currentTimeMillis(), level, currentTraceId(), message);
+        if (this.ringBuffer == null) {
+            this.output.accept(line.format(new StringBuilder()).toString());
+        } else if (!this.ringBuffer.offer(line)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of lines dropped because the ring buffer was full
+     */
+    public long droppedLines() {
+        return this.dropped.get();
+    }
+
+    private void writeBatches() {
+        List<Line> batch = new ArrayList<>(MaxBatchSize);
+        StringBuilder lines = new StringBuilder();
+        while (!Thread.currentThread().isInterrupted()) {
+            if (this.ringBuffer.drainTo(batch, MaxBatchSize) == 0) {
+                if (this.ringBuffer.isEmpty()) {
+                    LockSupport.parkNanos(this, IdleParkNanos);
+                } else {
+                    // the next line is claimed but not stored yet
+                    Thread.onSpinWait();
+                }
+            }
+            write(batch, lines);
+        }
+    }
+
+    private synchronized void writeWaitingLines() {
+        List<Line> batch = new ArrayList<>();
+        this.ringBuffer.drainTo(batch, Integer.MAX_VALUE);
+        write(batch, new StringBuilder());
+    }
+
+    private synchronized void write(List<Line> batch, StringBuilder lines) {
+        lines.setLength(0);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).format(lines);
+        }
+        batch.clear();
+        long dropped = this.dropped.get();
+        if (dropped != this.droppedReported) {
+            lines.append("AccessLog: dropped ").append(dropped - this.droppedReported)
+                    .append(" lines as the buffer was full\n");
+            this.droppedReported = dropped;
+        }
+        if (lines.length() > 0) {
+            this.output.accept(lines.toString());
+        }
+    }
+
+    /**
+     * A bounded multi-producer ring buffer. Each slot holds a line from the time
+     * it is stored until the writer takes it, so a null slot at the head means
+     * the line claimed for it is still being stored.
+     */
+    private static final class RingBuffer {
+        private final AtomicReferenceArray<Line> slots;
+        private final int mask;
+        // the sequence number of the next line to claim
+        private final AtomicLong tail = new AtomicLong();
+        // the sequence number of the next line to take, only advanced holding the lock
+        private volatile long head = 0;
+
+        RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        /**
+         * @return false if the buffer is full, in which case the line isn't stored
+         */
+        boolean offer(Line line) {
+            long sequence;
+            do {
+                sequence = this.tail.get();
+                if (sequence - this.head > this.mask) {
+                    return false;
+                }
+            } while (!this.tail.compareAndSet(sequence, sequence + 1));
+            this.slots.lazySet((int) sequence & this.mask, line);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return this.tail.get() == this.head;
+        }
+
+        /**
+         * Only the writer and the flush on shutdown take lines, so the lock is never
+         * held against the request threads
+         *
+         * @return the number of lines added to the batch
+         */
+        synchronized int drainTo(List<Line> batch, int maxLines) {
+            long sequence = this.head;
+            int taken = 0;
+            while (taken < maxLines) {
+                int slot = (int) sequence & this.mask;
+                Line line = this.slots.get(slot);
+                if (line == null) {
+                    break;
+                }
+                // freed before the head moves past it, so it is null when claimed again
+                this.slots.lazySet(slot, null);
+                batch.add(line);
+                sequence++;
+                taken++;
+            }
+            this.head = sequence;
+            return taken;
+        }
+    }
+
+    private static final class Line {
+        private final long timestamp;
+        private final Level level;
+        private final String traceId;
+        private final String message;
+
+        Line(long timestamp, Level level, String traceId, String message) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.traceId = traceId;
+            this.message = message;
+        }
+
+        StringBuilder format(StringBuilder lines) {
+            return lines.append(Instant.ofEpochMilli(this.timestamp)).append(' ')
+                    .append(this.level).append(" [trace.id=").append(this.traceId == null ? "-" : this.traceId)
+                    .append("] ").append(this.message).append('\n');
+        }
+    }
+}
@@ -7,33 +7,96 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This uses the HttpServer embedded in the JDK. This HTTP server is already
  * instrumented by the Elastic Java agent in the apm-jdk-httpserver-plugin at
  * https://github.com/elastic/apm-agent-java/tree/master/apm-agent-plugins/apm-jdk-httpserver-plugin
  * <p>
- * This class is only here as a reference for you to compare agent internal
- * instrumentation against the instrumentation implemented here for the
- * other `ExampleHttpServer`
+ * It is a reference for you to compare the agent's internal instrumentation
+ * against the instrumentation implemented here for the other `ExampleHttpServer`s,
+ * and it is instrumented by the plugin too: the plugin's ExampleHttpHandlerInstrumentation
+ * traces its `HttpHandler`s, so each request gets a span from the plugin,
+ * named from the handler's context, as a child of the agent's own transaction
+ * <p>
+ * Use {@link #builder()} to configure the bind address, port, connection
+ * backlog and which threads handle the exchanges (see {@link ExecutorType}).
+ * All the state is per instance, so several servers can run side by side.
  */
 public class ExampleAlreadyInstrumentedHttpServer implements ExampleHttpServer {
-    private static volatile HttpServer TheServerInstance;
-    private static String TheServerRootPage;
-    private HttpServer thisServer;
+    /**
+     * Which threads the HttpServer handles exchanges on
+     */
+    public enum ExecutorType {
+        /** the HttpServer's single dispatcher thread, which is its default */
+        DISPATCHER,
+        /** a fixed size pool of threads */
+        FIXED,
+        /** a work-stealing pool (a ForkJoinPool) */
+        WORK_STEALING,
+        /** a new virtual thread per exchange (JDK 21+, see {@link VirtualThreads}) */
+        VIRTUAL
+    }
+
+    private final String bindAddress;
+    private final int port;
+    private final int backlog;
+    private final ExecutorType executorType;
+    private final int threads;
+    private volatile HttpServer thisServer;
+    private byte[] rootPage;
+    private ExecutorService executor;
+    private final CompletableFuture<Integer> boundPort = new CompletableFuture<>();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+
+    public ExampleAlreadyInstrumentedHttpServer() {
+        this(false);
+    }
+
+    /**
+     * @param virtualThreads true to handle each exchange on a new virtual thread, or
+     *                       on a platform thread if the JDK is older than 21 (see {@link VirtualThreads})
+     */
+    public ExampleAlreadyInstrumentedHttpServer(boolean virtualThreads) {
+        this(builder().executor(virtualThreads ? ExecutorType.VIRTUAL : ExecutorType.DISPATCHER));
+    }
+
+    private ExampleAlreadyInstrumentedHttpServer(Builder builder) {
+        this.bindAddress = builder.bindAddress;
+        this.port = builder.port;
+        this.backlog = builder.backlog;
+        this.executorType = builder.executorType;
+        this.threads = builder.threads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     @Override
     public int getLocalPort() {
-        return TheServerInstance == null ? -1 : TheServerInstance.getAddress().getPort();
+        HttpServer server = thisServer;
+        return server == null || stopped.isDone() ? -1 : server.getAddress().getPort();
     }
 
     @Override
     public synchronized void start() throws IOException {
-        if (TheServerInstance != null) {
+        if (thisServer != null) {
             throw new IOException("ExampleHttpServer: Ooops, you can't start this instance more than once");
         }
-        InetSocketAddress addr = new InetSocketAddress("0.0.0.0", 0);
-        thisServer = HttpServer.create(addr, 10);
+        InetSocketAddress addr = new InetSocketAddress(bindAddress, port);
+        HttpServer server;
+        try {
+            server = HttpServer.create(addr, backlog);
+        } catch (IOException | RuntimeException e) {
+            boundPort.completeExceptionally(e);
+            stopped.complete(null);
+            throw e;
+        }
         MyHttpHandler[] handlers = new MyHttpHandler[]{
                 new ExitHandler(), new RootHandler(), //order matters
         };
@@ -44,42 +107,120 @@ public class ExampleAlreadyInstrumentedHttpServer implements ExampleHttpServer {
                     .append("\">")
                     .append(httpHandler.getContext().substring(1))
                     .append("</A><BR>");
-            thisServer.createContext(httpHandler.getContext(), httpHandler);
+            server.createContext(httpHandler.getContext(), httpHandler);
+        }
+        // encoded once here, so the handlers just write the bytes, with their exact length
+        rootPage = sb.toString().getBytes(StandardCharsets.UTF_8);
+        executor = newExecutor();
+        if (executor != null) {
+            server.setExecutor(executor);
+        }
+        System.out.println("ExampleAlreadyInstrumentedHttpServer: Starting new webservice on port " + server.getAddress().getPort());
+        server.start();
+        thisServer = server;
+        boundPort.complete(server.getAddress().getPort());
+    }
+
+    private ExecutorService newExecutor() {
+        switch (executorType) {
+            case FIXED:
+                return Executors.newFixedThreadPool(threads);
+            case WORK_STEALING:
+                return Executors.newWorkStealingPool(threads);
+            case VIRTUAL:
+                return VirtualThreads.newThreadPerTaskExecutor();
+            default:
+                return null;
         }
-        TheServerRootPage = sb.toString();
-        System.out.println("ExampleAlreadyInstrumentedHttpServer: Starting new webservice on port " + thisServer.getAddress().getPort());
-        thisServer.start();
-        TheServerInstance = thisServer;
     }
 
     public void stop() {
-        thisServer.stop(1);
-        try {
-            Thread.sleep(2000L);
-        } catch (InterruptedException e1) {
+        stop(1);
+    }
+
+    /**
+     * HttpServer.stop() itself blocks until the exchanges in progress have
+     * finished, or the delay has passed, so this needs no waiting of its own
+     *
+     * @param delaySeconds the longest time to wait for exchanges in progress
+     */
+    private synchronized void stop(int delaySeconds) {
+        if (stopped.isDone() || thisServer == null) {
+            return;
+        }
+        thisServer.stop(delaySeconds);
+        if (executor != null) {
+            executor.shutdown();
         }
-        TheServerInstance = null;
+        stopped.complete(null);
     }
 
     @Override
-    public void blockUntilReady() {
-        while (TheServerInstance == null) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
-        }
+    public CompletableFuture<Integer> boundPort() {
+        return boundPort.copy();
     }
 
     @Override
-    public void blockUntilStopped() {
-        while (TheServerInstance != null) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
+    public CompletableFuture<Void> stopped() {
+        return stopped.copy();
+    }
+
+    /**
+     * Configures an {@link ExampleAlreadyInstrumentedHttpServer}. The defaults are to
+     * listen on an ephemeral port on all interfaces, with the system default backlog,
+     * handling exchanges on the HttpServer's dispatcher thread
+     */
+    public static final class Builder {
+        private String bindAddress = "0.0.0.0";
+        private int port = 0;
+        private int backlog = 0;
+        private ExecutorType executorType = ExecutorType.DISPATCHER;
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        private Builder() {
+        }
+
+        /**
+         * @param bindAddress the host name or IP address to listen on
+         */
+        public Builder bindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        /**
+         * @param port the port to listen on, or 0 for any free port
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param backlog the number of connections that can wait to be accepted before
+         *                further ones are refused, or 0 or less for the system default
+         */
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder executor(ExecutorType executorType) {
+            this.executorType = executorType;
+            return this;
+        }
+
+        /**
+         * @param threads the number of threads for the FIXED pool, or the
+         *                parallelism of the WORK_STEALING pool
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public ExampleAlreadyInstrumentedHttpServer build() {
+            return new ExampleAlreadyInstrumentedHttpServer(this);
         }
     }
 
@@ -98,22 +239,22 @@ public class ExampleAlreadyInstrumentedHttpServer implements ExampleHttpServer {
 
     }
 
-    public static class RootHandler extends MyHttpHandler {
+    public class RootHandler extends MyHttpHandler {
         @Override
         public String getContext() {
             return "/";
         }
 
         public void myHandle(HttpExchange t) throws IOException {
-            String response = TheServerRootPage;
-            t.sendResponseHeaders(200, response.length());
+            byte[] response = rootPage;
+            t.sendResponseHeaders(200, response.length);
             OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
+            os.write(response);
             os.close();
         }
     }
 
-    public static class ExitHandler extends MyHttpHandler {
+    public class ExitHandler extends MyHttpHandler {
 
         private static final int STOP_TIME = 3;
 
@@ -124,13 +265,14 @@ public class ExampleAlreadyInstrumentedHttpServer implements ExampleHttpServer {
 
         @Override
         public void myHandle(HttpExchange t) throws IOException {
-            String response = TheServerRootPage;
-            t.sendResponseHeaders(200, response.length());
+            byte[] response = rootPage;
+            t.sendResponseHeaders(200, response.length);
             OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
+            os.write(response);
             os.close();
-            TheServerInstance.stop(STOP_TIME);
-            TheServerInstance = null;
+            // HttpServer.stop() blocks while it waits for exchanges in progress, including
+            // this one, so it's called on another thread to let this exchange complete
+            CompletableFuture.runAsync(() -> stop(STOP_TIME));
         }
     }
 
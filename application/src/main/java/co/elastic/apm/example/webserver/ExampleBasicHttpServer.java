@@ -1,52 +1,110 @@
 package co.elastic.apm.example.webserver;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /**
- * Really basic single-threaded HTTP server only really useful for
- * just this example as an HTTP server to instrument. Don't use this
- * for anything else is my advice. Can only handle 1 connection at
- * a time, the start() call is blocking, doesn't keep-alive, no SSL,
- * no compression, only returns a hardcoded page, will break on
- * large requests, so incredibly limited!
+ * Really basic HTTP server only really useful for just this example
+ * as an HTTP server to instrument. Don't use this for anything else
+ * is my advice. The start() call is blocking, no SSL, no compression,
+ * only returns a hardcoded page, will break on large requests,
+ * so incredibly limited!
  * <p>
- * It's also really verbose and uses System.out instead of logging
+ * By default it handles each connection on the thread that called start(),
+ * ie the thread accepting connections, so only 1 connection at a time.
+ * Alternatively it can hand each accepted connection to a bounded pool
+ * of worker threads. When all the workers are busy and the queue of waiting
+ * connections is full, further connections are refused with a 503 response.
+ * Or, on JDK 21+, it can handle each connection on its own virtual thread.
+ * <p>
+ * When connections are handled by workers or virtual threads, they are
+ * kept alive (HTTP/1.1 persistent connections, framed by Content-Length)
+ * for up to {@value MaxRequestsPerConnection} requests, or until idle for
+ * {@value IdleTimeoutMillis}ms. A pooled worker only keeps a connection alive
+ * while no other connections are waiting for a worker, so idle clients can't
+ * starve new ones. On the accepting thread every connection is closed after
+ * one request, as waiting for the next request would block all other clients.
+ * <p>
+ * It's also really verbose, it logs every request and (at DEBUG level) every
+ * header line to the {@link AccessLog}, and uses System.out for starting and stopping
  * <p>
  * Calling /exit as the URL path will terminate it, any other path
  * returns the same page in `TheHtmlPage`
  */
 public class ExampleBasicHttpServer implements ExampleHttpServer {
-    private static final String TheHttpHeader = "HTTP/1.0 200 OK\nContent-Type: text/html; charset=utf-8\nServer: ExampleHttpServer\n\n";
     private static final String TheHtmlPage = "<HTML><HEAD><TITLE>ExampleHttpServer</TITLE></HEAD><BODY>Nothing Here</BODY></HTML>";
+    private static final StaticResponse TheResponse = StaticResponse.html(TheHtmlPage);
+    private static final byte[] TheBusyResponse = ("HTTP/1.0 503 Service Unavailable\r\nContent-Length: 0\r\n"
+            + "Server: ExampleHttpServer\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final int MaxRequestsPerConnection = 100;
+    private static final int IdleTimeoutMillis = 5000;
+    private static final AccessLog Log = AccessLog.get();
 
+    private final int workerThreads;
+    private final int maxQueuedConnections;
+    private final boolean virtualThreads;
     private volatile ServerSocket server;
-    private volatile boolean isReady = false;
+    private volatile ThreadPoolExecutor pool;
+    private final CompletableFuture<Integer> boundPort = new CompletableFuture<>();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    private volatile boolean exitRequested = false;
+
+    /**
+     * A server which handles each connection on the thread that called start()
+     */
+    public ExampleBasicHttpServer() {
+        this(0, 0, false);
+    }
+
+    /**
+     * @param workerThreads the number of threads handling connections, or 0
+     *                      to handle them on the thread that called start()
+     * @param maxQueuedConnections the number of accepted connections that can wait
+     *                             for a free worker before further ones are refused
+     */
+    public ExampleBasicHttpServer(int workerThreads, int maxQueuedConnections) {
+        this(workerThreads, maxQueuedConnections, false);
+    }
+
+    private ExampleBasicHttpServer(int workerThreads, int maxQueuedConnections, boolean virtualThreads) {
+        this.workerThreads = workerThreads;
+        this.maxQueuedConnections = maxQueuedConnections;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return a server which handles each connection on a new virtual thread, or
+     *         on a platform thread if the JDK is older than 21 (see {@link VirtualThreads})
+     */
+    public static ExampleBasicHttpServer withVirtualThreads() {
+        return new ExampleBasicHttpServer(0, 0, true);
+    }
 
     @Override
-    public void blockUntilReady() {
-        while (!this.isReady) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
-        }
+    public CompletableFuture<Integer> boundPort() {
+        return this.boundPort.copy();
     }
 
     @Override
-    public void blockUntilStopped() {
-        while (this.server != null && !this.server.isClosed()) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
-        }
+    public CompletableFuture<Void> stopped() {
+        return this.stopped.copy();
     }
 
     @Override
@@ -55,6 +113,7 @@ public class ExampleBasicHttpServer implements ExampleHttpServer {
             if (this.server != null) {
                 System.out.println("ExampleHttpServer: Attempting to call stop()");
                 this.server.close();
+                this.stopped.complete(null);
                 System.out.println("ExampleHttpServer: Successfully called stop()");
             } else {
                 System.out.println("ExampleHttpServer: Attempted to call stop() on a server that was never start() successfully!");
@@ -71,16 +130,89 @@ public class ExampleBasicHttpServer implements ExampleHttpServer {
         if (this.server != null) {
             throw new IOException("ExampleHttpServer: Ooops, you can't start this instance more than once");
         }
-        this.server = new ServerSocket(0);
+        try {
+            this.server = new ServerSocket(0);
+        } catch (IOException | RuntimeException e) {
+            this.boundPort.completeExceptionally(e);
+            this.stopped.complete(null);
+            throw e;
+        }
         System.out.println("ExampleHttpServer: Successfully called start(), now listening for requests");
-        boolean keepGoing = true;
-        while (keepGoing) {
-            this.isReady = true;
-            try (Socket client = this.server.accept()) {
-                keepGoing = processClient(client);
+        // connections made from now on wait in the socket backlog until they are accepted
+        this.boundPort.complete(this.server.getLocalPort());
+        try {
+            if (this.virtualThreads) {
+                acceptInto(VirtualThreads.newThreadPerTaskExecutor());
+            } else if (this.workerThreads > 0) {
+                this.pool = new ThreadPoolExecutor(this.workerThreads, this.workerThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(Math.max(this.maxQueuedConnections, 1)));
+                acceptInto(this.pool);
+            } else {
+                boolean keepGoing = true;
+                while (keepGoing) {
+                    try (Socket client = this.server.accept()) {
+                        keepGoing = processClient(client, 1);
+                    }
+                }
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    private void acceptInto(ExecutorService workers) throws IOException {
+        try {
+            while (!this.exitRequested) {
+                Socket client;
+                try {
+                    client = this.server.accept();
+                } catch (SocketException e) {
+                    if (this.exitRequested) {
+                        break; // a worker closed the server socket after handling /exit
+                    }
+                    throw e;
+                }
+                try {
+                    workers.execute(() -> processClientOnWorker(client));
+                } catch (RejectedExecutionException e) {
+                    refuse(client);
+                }
+            }
+        } finally {
+            // let the workers finish the connections they already have
+            workers.shutdown();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void processClientOnWorker(Socket client) {
+        try (client) {
+            if (!processClient(client, MaxRequestsPerConnection)) {
+                // /exit was called, so stop accepting, which ends the accept loop
+                this.exitRequested = true;
+                stop();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void refuse(Socket client) {
+        Log.error("ExampleHttpServer: All workers are busy, refusing the connection");
+        try (client) {
+            OutputStream output = client.getOutputStream();
+            output.write(TheBusyResponse);
+            output.flush();
+            // discard what was sent of the request, as closing with unread
+            // input resets the connection and the client might miss the 503
+            client.getInputStream().skip(client.getInputStream().available());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        stop();
     }
 
     @Override
@@ -88,47 +220,141 @@ public class ExampleBasicHttpServer implements ExampleHttpServer {
         return this.server == null ? -1 : this.server.getLocalPort();
     }
 
-    private boolean processClient(Socket client) {
+    /**
+     * Handles the requests on a connection until the client closes it, asks for
+     * it to be closed, is idle for too long, or has sent `maxRequests` requests
+     *
+     * @return false if /exit was called, otherwise true
+     */
+    private boolean processClient(Socket client, int maxRequests) {
         boolean keepGoing = true;
-        System.out.println("ExampleHttpServer: Received a client connection, now attempting to read the request");
-        while (!client.isClosed() && !client.isInputShutdown() && !client.isOutputShutdown()) {
-            try (BufferedReader clientInput = new BufferedReader(new InputStreamReader(client.getInputStream()))) {
-                String line = clientInput.readLine();
-                if (line == null) {
-                    //hmmm, try again
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                    }
+        Log.debug("ExampleHttpServer: Received a client connection, now attempting to read the request");
+        // connections can be handled concurrently, so each borrows its own header lines
+        RequestHeaders headerLines = RequestHeaders.borrow();
+        try {
+            client.setSoTimeout(IdleTimeoutMillis);
+            BufferedReader clientInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            Response response = new Response(client.getOutputStream());
+            for (int requests = 1; keepGoing; requests++) {
+                String line;
+                try {
                     line = clientInput.readLine();
-                    if (line == null) {
-                        clientInput.close();
-                        break;
-                    }
+                } catch (SocketTimeoutException e) {
+                    Log.debug("ExampleHttpServer: Closing the idle connection");
+                    break;
+                }
+                if (line == null) {
+                    break; // the client closed the connection
                 }
                 if (line.startsWith("GET /exit")) {
                     keepGoing = false;
                 }
-                PrintWriter outputToClient = new PrintWriter(client.getOutputStream());
-                handleRequest(line, clientInput, outputToClient);
-                clientInput.close();
-                outputToClient.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                headerLines.readFrom(clientInput);
+                response.keepAlive = keepGoing && requests < maxRequests
+                        && isKeepAliveRequested(line, headerLines) && !connectionsAreWaiting();
+                handleRequest(line, headerLines, response);
+                if (!response.keepAlive) {
+                    break;
+                }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            headerLines.release();
         }
         return keepGoing;
     }
 
-    private void handleRequest(String request, BufferedReader clientInput, PrintWriter outputToClient) throws IOException {
-        System.out.println("ExampleHttpServer: HTTP-HEADER: " + request);
-        String line;
-        while ((line = clientInput.readLine()) != null && line.length() != 0) {
-            System.out.println("ExampleHttpServer: HTTP-HEADER: " + line);
+    /**
+     * HTTP/1.1 connections are persistent unless the client sends `Connection: close`,
+     * HTTP/1.0 ones only if the client sends `Connection: keep-alive`. Requests with
+     * a body aren't kept alive, as the body isn't read so the next request can't be found
+     */
+    private static boolean isKeepAliveRequested(String request, RequestHeaders headerLines) {
+        String contentLength = headerLines.value("Content-Length");
+        if (headerLines.value("Transfer-Encoding") != null || (contentLength != null && !contentLength.equals("0"))) {
+            return false;
+        }
+        String connection = headerLines.value("Connection");
+        if (connection != null && connection.equalsIgnoreCase("close")) {
+            return false;
+        }
+        return request.endsWith("HTTP/1.1") || (connection != null && connection.equalsIgnoreCase("keep-alive"));
+    }
+
+    private boolean connectionsAreWaiting() {
+        ThreadPoolExecutor pool = this.pool;
+        return pool != null && !pool.getQueue().isEmpty();
+    }
+
+    /**
+     * This is the method the plugin instruments. The header lines are read
+     * before calling it so that they are available to its instrumentation on
+     * method entry, eg to ignore requests by their User-Agent, and the response
+     * counts the body bytes written, for its instrumentation on method exit
+     *
+     * @return the HTTP status code of the response, which the plugin records on the span
+     */
+    private int handleRequest(String request, List<String> headerLines, Response response) throws IOException {
+        Log.info("ExampleHttpServer: HTTP-HEADER: " + request);
+        if (Log.isDebugEnabled()) {
+            for (int i = 0; i < headerLines.size(); i++) {
+                Log.debug("ExampleHttpServer: HTTP-HEADER: " + headerLines.get(i));
+            }
+            if (response.keepAlive) {
+                Log.debug("ExampleHttpServer: Now replying the standard page and keeping the connection alive");
+            } else {
+                Log.debug("ExampleHttpServer: Now replying the standard page and terminating the connection");
+            }
+        }
+        response.send(TheResponse);
+        return TheResponse.statusCode();
+    }
+
+    /**
+     * Where to write the response to a request, and whether the connection
+     * is kept open after it. One is used for all the requests on a connection.
+     * <p>
+     * The body is written through this stream, which counts the bytes, and
+     * {@link #getAsLong()} returns the count for the current response, so the
+     * plugin can report the body size without knowing this class. The header
+     * bypasses the count. Both go to a buffer which is flushed once per response,
+     * so the response is still a single write to the socket.
+     */
+    private static final class Response extends FilterOutputStream implements LongSupplier {
+        private boolean keepAlive;
+        private long bodyBytes;
+
+        Response(OutputStream outputToClient) {
+            super(new BufferedOutputStream(outputToClient));
+        }
+
+        void send(StaticResponse page) throws IOException {
+            this.bodyBytes = 0;
+            page.writeHeaderTo(this.out, this.keepAlive);
+            page.writeBodyTo(this);
+            flush();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.bodyBytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the array a byte at a time
+            this.out.write(b, off, len);
+            this.bodyBytes += len;
+        }
+
+        /**
+         * @return the number of body bytes written for the current response
+         */
+        @Override
+        public long getAsLong() {
+            return this.bodyBytes;
         }
-        System.out.println("ExampleHttpServer: Now replying the standard page and terminating the connection");
-        outputToClient.println(TheHttpHeader);
-        outputToClient.println(TheHtmlPage);
-        outputToClient.flush();
     }
 }
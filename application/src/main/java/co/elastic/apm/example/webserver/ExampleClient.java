@@ -5,20 +5,28 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
 
 public class ExampleClient {
     public static int PORT;
+    // -Dexample.traceparent=00-<trace id>-<parent id>-01 sends that W3C traceparent header,
+    // as a traced caller would, so the server's transactions continue that trace
+    private static final String TRACEPARENT = System.getProperty("example.traceparent");
 
     public static void main(String[] args) throws IOException, InterruptedException {
         // Start the server in a separate thread
         System.out.println("ExampleClient: Starting the webserver");
         ExampleHttpServer server;
+        // -Dexample.virtual_threads=true runs each request on a virtual thread (JDK 21+)
+        boolean virtualThreads = Boolean.getBoolean("example.virtual_threads");
         if ("ExampleClient-ExampleAlreadyInstrumentedHttpServer".equals(System.getProperty("elastic.apm.service_name"))) {
-            server = new ExampleAlreadyInstrumentedHttpServer();
+            server = new ExampleAlreadyInstrumentedHttpServer(virtualThreads);
         } else if ("ExampleClient-ExampleBasicHttpServer".equals(System.getProperty("elastic.apm.service_name"))) {
-            server = new ExampleBasicHttpServer();
+            server = virtualThreads ? ExampleBasicHttpServer.withVirtualThreads() : new ExampleBasicHttpServer();
+        } else if ("ExampleClient-ExampleNioHttpServer".equals(System.getProperty("elastic.apm.service_name"))) {
+            server = new ExampleNioHttpServer();
         } else {
-            throw new IOException("Must set -Delastic.apm.service_name=ExampleClient-ExampleBasicHttpServer or -Delastic.apm.service_name=ExampleClient-ExampleAlreadyInstrumentedHttpServer");
+            throw new IOException("Must set -Delastic.apm.service_name=ExampleClient-ExampleBasicHttpServer, -Delastic.apm.service_name=ExampleClient-ExampleNioHttpServer or -Delastic.apm.service_name=ExampleClient-ExampleAlreadyInstrumentedHttpServer");
         }
         new Thread(() -> {startServer(server);}).start();
         System.out.println("ExampleClient: waiting for webserver to be ready");
@@ -32,31 +40,36 @@ public class ExampleClient {
         executeRequest(client, "exit");
 
         System.out.println("ExampleClient: waiting for webserver terminate (or will exit in 10 seconds regardless)");
-        exitIn10Seconds();
-        server.blockUntilStopped();
+        if (!server.blockUntilStopped(10, TimeUnit.SECONDS)) {
+            System.out.println("ExampleClient: webserver did not terminate, exiting anyway");
+            System.exit(0);
+        }
 
         System.out.println("ExampleClient: Exiting");
     }
 
-    private static void exitIn10Seconds() {
-        new Thread() {
-            public void run() {
-                try {Thread.sleep(10_000L);} catch (InterruptedException e) {}
-                System.exit(0);
-            }
-        }.start();
+    private static void executeRequest(HttpClient client, String req) throws IOException, InterruptedException {
+        executeRequest(client, PORT, req, TRACEPARENT);
     }
 
-    private static void executeRequest(HttpClient client, String req) throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:"+PORT+"/"+req))
-                .GET() // GET is default
-                .build();
+    /**
+     * @param traceparent the W3C traceparent header to send, or null to send none
+     * @return the status code of the response
+     */
+    public static int executeRequest(HttpClient client, int port, String req, String traceparent) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:"+port+"/"+req))
+                .GET(); // GET is default
+        if (traceparent != null) {
+            builder.header("traceparent", traceparent);
+        }
+        HttpRequest request = builder.build();
 
         System.out.println("ExampleClient: calling "+request);
         HttpResponse<String> response = client.send(request,
                 HttpResponse.BodyHandlers.ofString());
         System.out.println("ExampleClient: call result status is "+response.statusCode());
+        return response.statusCode();
     }
 
     private static void startServer(ExampleHttpServer server) {
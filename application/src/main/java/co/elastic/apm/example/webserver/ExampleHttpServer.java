@@ -1,11 +1,75 @@
-package co.elastic.apm.example.webserver;
-
-import java.io.IOException;
-
-public interface ExampleHttpServer {
-    public void blockUntilReady();
-    public void blockUntilStopped();
-    public void stop();
-    public void start() throws IOException;
-    public int getLocalPort();
-}
+package co.elastic.apm.example.webserver;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The lifecycle of each server is signalled with futures rather than polled:
+ * {@link #boundPort()} completes when the server is ready to accept connections,
+ * and {@link #stopped()} when it no longer accepts them. The `blockUntil...`
+ * methods just wait for those futures, so they return as soon as the
+ * server is ready or stopped.
+ */
+public interface ExampleHttpServer {
+    /**
+     * @return a future completed with the port the server is listening on once it
+     *         is ready to accept connections, or completed exceptionally if start() fails
+     */
+    public CompletableFuture<Integer> boundPort();
+
+    /**
+     * @return a future completed once the server has stopped accepting connections
+     */
+    public CompletableFuture<Void> stopped();
+
+    /**
+     * Waits until the server is ready to accept connections
+     *
+     * @throws java.util.concurrent.CompletionException if start() failed
+     */
+    public default void blockUntilReady() {
+        boundPort().join();
+    }
+
+    /**
+     * Waits until the server has stopped accepting connections
+     */
+    public default void blockUntilStopped() {
+        stopped().join();
+    }
+
+    /**
+     * @return true if the server is ready to accept connections, false if
+     *         it still wasn't when the timeout expired
+     * @throws IOException if start() failed
+     */
+    public default boolean blockUntilReady(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        return await(boundPort(), timeout, unit);
+    }
+
+    /**
+     * @return true if the server has stopped accepting connections, false
+     *         if it still hadn't when the timeout expired
+     */
+    public default boolean blockUntilStopped(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        return await(stopped(), timeout, unit);
+    }
+
+    private static boolean await(CompletableFuture<?> future, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IOException("ExampleHttpServer: start() failed", e.getCause());
+        }
+    }
+
+    public void stop();
+    public void start() throws IOException;
+    public int getLocalPort();
+}
@@ -0,0 +1,300 @@
+package co.elastic.apm.example.webserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A basic non-blocking HTTP server, with the same limitations as
+ * `ExampleBasicHttpServer` (no keep-alive, no SSL, only returns a
+ * hardcoded page, will break on large requests) but which handles
+ * all connections on one thread using a `Selector`.
+ * <p>
+ * Requests are read into pooled direct ByteBuffers and the request line
+ * is handed to `handleRequest()` as a CharSequence view over those bytes,
+ * so no chars or Strings are decoded. The response is encoded once, into
+ * direct ByteBuffers which are sent to every client with a gathering write.
+ * <p>
+ * Calling /exit as the URL path will terminate it, any other path
+ * returns the same page in `TheHtmlPage`
+ */
+public class ExampleNioHttpServer implements ExampleHttpServer {
+    private static final String TheHtmlPage = "<HTML><HEAD><TITLE>ExampleHttpServer</TITLE></HEAD><BODY>Nothing Here</BODY></HTML>";
+    private static final StaticResponse TheResponse = StaticResponse.html(TheHtmlPage);
+    private static final int MaxRequestSize = 8 * 1024;
+    private static final AccessLog Log = AccessLog.get();
+
+    private volatile ServerSocketChannel server;
+    private volatile Selector selector;
+    private final CompletableFuture<Integer> boundPort = new CompletableFuture<>();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    private boolean exitRequested = false;
+    // only used from the selector thread, so needs no synchronization
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+
+    @Override
+    public CompletableFuture<Integer> boundPort() {
+        return this.boundPort.copy();
+    }
+
+    @Override
+    public CompletableFuture<Void> stopped() {
+        return this.stopped.copy();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (this.server != null) {
+                System.out.println("ExampleNioHttpServer: Attempting to call stop()");
+                this.server.close();
+                this.selector.wakeup();
+                System.out.println("ExampleNioHttpServer: Successfully called stop()");
+            } else {
+                System.out.println("ExampleNioHttpServer: Attempted to call stop() on a server that was never start() successfully!");
+            }
+        } catch (IOException e) {
+            System.out.println("ExampleNioHttpServer: Unsuccessfully called stop(), stack trace follows, error is:" + e.getLocalizedMessage());
+            e.printStackTrace(System.out);
+        }
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        System.out.println("ExampleNioHttpServer: Attempting to call start()");
+        if (this.server != null) {
+            throw new IOException("ExampleNioHttpServer: Ooops, you can't start this instance more than once");
+        }
+        ServerSocketChannel serverChannel;
+        try {
+            this.selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(0));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException | RuntimeException e) {
+            this.boundPort.completeExceptionally(e);
+            this.stopped.complete(null);
+            throw e;
+        }
+        this.server = serverChannel;
+        System.out.println("ExampleNioHttpServer: Successfully called start(), now listening for requests");
+        this.boundPort.complete(serverChannel.socket().getLocalPort());
+        try {
+            while (!this.exitRequested && serverChannel.isOpen()) {
+                this.selector.select(this.keyHandler);
+            }
+        } finally {
+            stop();
+            for (SelectionKey key : this.selector.keys()) {
+                key.channel().close();
+            }
+            this.selector.close();
+            this.stopped.complete(null);
+        }
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.server == null ? -1 : this.server.socket().getLocalPort();
+    }
+
+    private void handleKey(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                read(key);
+            } else if (key.isWritable()) {
+                write(key);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = this.server.accept();
+        if (client != null) {
+            client.configureBlocking(false);
+            ByteBuffer buffer = this.bufferPool.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(MaxRequestSize);
+            }
+            client.register(this.selector, SelectionKey.OP_READ, new Connection(client, buffer));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer request = connection.request;
+        int searchFrom = Math.max(request.position() - 3, 0);
+        if (connection.channel.read(request) < 0) {
+            close(key);
+            return;
+        }
+        int headersEnd = indexOf(request, searchFrom, request.position(), true);
+        if (headersEnd < 0) {
+            if (!request.hasRemaining()) {
+                Log.error("ExampleNioHttpServer: Request too large, closing the connection");
+                close(key);
+            }
+            return; // wait for the rest of the headers
+        }
+        int requestLineEnd = indexOf(request, 0, headersEnd + 2, false);
+        connection.requestLine.wrap(request, 0, requestLineEnd);
+        if (startsWith(connection.requestLine, "GET /exit")) {
+            this.exitRequested = true;
+        }
+        handleRequest(connection.requestLine, request, connection);
+        if (!connection.isResponseWritten()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            close(key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        connection.writeResponse();
+        if (connection.isResponseWritten()) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        Connection connection = (Connection) key.attachment();
+        if (connection != null) {
+            connection.request.clear();
+            this.bufferPool.push(connection.request);
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This is the method the plugin instruments. The request line is a view over the
+     * bytes in the request buffer, which is reused for later connections, so it is
+     * only valid for the duration of this call.
+     *
+     * @param requestLine the HTTP request line, eg "GET /something?y#x HTTP/1.1"
+     * @param requestBytes the whole request, request line and headers
+     * @param connection the connection to write the response to
+     * @return the HTTP status code of the response, which the plugin records on the span
+     */
+    private int handleRequest(CharSequence requestLine, ByteBuffer requestBytes, Connection connection) throws IOException {
+        if (Log.isDebugEnabled()) {
+            // only at DEBUG, as this decodes the request line into a String
+            Log.debug("ExampleNioHttpServer: HTTP-HEADER: " + requestLine);
+        }
+        connection.response = TheResponse.newBuffers(false);
+        connection.writeResponse();
+        return TheResponse.statusCode();
+    }
+
+    /**
+     * @return the index of the first "\r\n" (or "\r\n\r\n" if `blankLine`) in [from,to), or -1
+     */
+    private static int indexOf(ByteBuffer buffer, int from, int to, boolean blankLine) {
+        int length = blankLine ? 4 : 2;
+        for (int i = from; i <= to - length; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && (!blankLine || (buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n'))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence value, String prefix) {
+        if (value.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (value.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer request;
+        private final AsciiSequence requestLine = new AsciiSequence();
+        private ByteBuffer[] response;
+
+        Connection(SocketChannel channel, ByteBuffer request) {
+            this.channel = channel;
+            this.request = request;
+        }
+
+        /**
+         * Writes as much of the response as the socket accepts
+         */
+        void writeResponse() throws IOException {
+            this.channel.write(this.response);
+        }
+
+        boolean isResponseWritten() {
+            return !this.response[this.response.length - 1].hasRemaining();
+        }
+    }
+
+    /**
+     * A CharSequence over US-ASCII bytes in a ByteBuffer, so the request line
+     * can be read as chars without decoding it into a String
+     */
+    static final class AsciiSequence implements CharSequence {
+        private ByteBuffer bytes;
+        private int start;
+        private int length;
+
+        void wrap(ByteBuffer bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = end - start;
+        }
+
+        @Override
+        public int length() {
+            return this.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (this.bytes.get(this.start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            byte[] chars = new byte[to - from];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = this.bytes.get(this.start + from + i);
+            }
+            return new String(chars, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, this.length).toString();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package co.elastic.apm.example.webserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The header lines of a request, read from the connection once and then looked up
+ * by name as often as needed, without building a Map. The position of the colon
+ * in each line is found when it is read, so a lookup only compares names.
+ * <p>
+ * This is a List of the raw lines, eg "User-Agent: curl/7.81.0", so code which
+ * only knows it is a `List<String>`, like the plugin's advice, can read it too.
+ * <p>
+ * Instances are reused: a connection borrows one from a pool, which is refilled
+ * for each request on the connection, and returned when the connection closes.
+ * So once the pool is warm, handling a connection doesn't allocate header storage.
+ */
+final class RequestHeaders extends AbstractList<String> implements RandomAccess {
+    private static final int MaxPooled = 256;
+    private static final ConcurrentLinkedQueue<RequestHeaders> Pool = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the queue, so the size is counted separately
+    private static final AtomicInteger PoolSize = new AtomicInteger();
+
+    private String[] lines = new String[16];
+    private int[] colons = new int[16];
+    private int size;
+
+    private RequestHeaders() {
+    }
+
+    /**
+     * @return empty headers, from the pool if it has any
+     */
+    static RequestHeaders borrow() {
+        RequestHeaders headers = Pool.poll();
+        if (headers == null) {
+            return new RequestHeaders();
+        }
+        PoolSize.decrementAndGet();
+        return headers;
+    }
+
+    /**
+     * Returns these headers to the pool, they mustn't be used after this
+     */
+    void release() {
+        clear();
+        if (PoolSize.incrementAndGet() <= MaxPooled) {
+            Pool.offer(this);
+        } else {
+            PoolSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the lines with the ones read up to the blank line ending the headers
+     */
+    void readFrom(BufferedReader input) throws IOException {
+        clear();
+        String line;
+        while ((line = input.readLine()) != null && line.length() != 0) {
+            add(line);
+        }
+    }
+
+    @Override
+    public boolean add(String line) {
+        if (this.size == this.lines.length) {
+            this.lines = Arrays.copyOf(this.lines, this.size * 2);
+            this.colons = Arrays.copyOf(this.colons, this.size * 2);
+        }
+        this.lines[this.size] = line;
+        this.colons[this.size] = line.indexOf(':');
+        this.size++;
+        return true;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        return this.lines[index];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.lines, 0, this.size, null);
+        this.size = 0;
+    }
+
+    /**
+     * @param name the header name, matched ignoring case
+     * @return the trimmed value of the first header with that name, or null if there is none
+     */
+    String value(String name) {
+        for (int i = 0; i < this.size; i++) {
+            String line = this.lines[i];
+            if (this.colons[i] == name.length() && line.regionMatches(true, 0, name, 0, name.length())) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package co.elastic.apm.example.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An HTTP response which is always the same, so it is encoded to bytes just
+ * once, when it is created. Sending it then costs no char to byte encoding,
+ * and the Content-Length is the exact number of bytes in the encoded body
+ * (not the number of chars, which differs for any non-ASCII content).
+ * <p>
+ * There are two variants of the header, one keeping the connection alive and
+ * one closing it, each pre-encoded:
+ * <ul>
+ *     <li>for streams, as arrays, so the header and the body are each a single `write()`
+ *     <li>for channels, as direct ByteBuffers for a gathering write of header and body,
+ *     which the channel can send without first copying them into a native buffer
+ * </ul>
+ */
+public final class StaticResponse {
+    private static final int StatusCode = 200;
+    private final byte[] keepAliveHeaderBytes;
+    private final byte[] closeHeaderBytes;
+    private final byte[] bodyBytes;
+    private final ByteBuffer keepAliveHeader;
+    private final ByteBuffer closeHeader;
+    private final ByteBuffer body;
+
+    private StaticResponse(String contentType, byte[] body) {
+        String header = "HTTP/1.1 " + StatusCode + " OK\r\nContent-Type: " + contentType + "\r\nContent-Length: " + body.length
+                + "\r\nServer: ExampleHttpServer\r\nConnection: ";
+        byte[] keepAliveHeader = (header + "keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] closeHeader = (header + "close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.keepAliveHeaderBytes = keepAliveHeader;
+        this.closeHeaderBytes = closeHeader;
+        this.bodyBytes = body;
+        this.keepAliveHeader = direct(keepAliveHeader);
+        this.closeHeader = direct(closeHeader);
+        this.body = direct(body);
+    }
+
+    /**
+     * @param page the HTML page, encoded as UTF-8
+     */
+    public static StaticResponse html(String page) {
+        return new StaticResponse("text/html; charset=utf-8", page.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the HTTP status code of the response, which is always 200 (OK)
+     */
+    public int statusCode() {
+        return StatusCode;
+    }
+
+    /**
+     * Writes just the header, for servers which write the body separately,
+     * eg through a stream counting the body bytes
+     */
+    public void writeHeaderTo(OutputStream output, boolean keepAlive) throws IOException {
+        output.write(keepAlive ? this.keepAliveHeaderBytes : this.closeHeaderBytes);
+    }
+
+    /**
+     * Writes just the body, for servers which write the header themselves
+     */
+    public void writeBodyTo(OutputStream output) throws IOException {
+        output.write(this.bodyBytes);
+    }
+
+    /**
+     * The buffers share the pre-encoded bytes, only their positions are
+     * separate, so each connection can track how much it has written
+     *
+     * @return the header and body, ready for a gathering write
+     */
+    public ByteBuffer[] newBuffers(boolean keepAlive) {
+        return new ByteBuffer[]{(keepAlive ? this.keepAliveHeader : this.closeHeader).duplicate(), this.body.duplicate()};
+    }
+}
@@ -0,0 +1,58 @@
+package co.elastic.apm.example.webserver;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (JDK 21+) from code compiled for JDK 11.
+ * `Executors.newVirtualThreadPerTaskExecutor()` is looked up reflectively
+ * once, so on older JDKs this falls back to a platform thread per task
+ * rather than failing to load.
+ */
+public final class VirtualThreads {
+    private static final MethodHandle NewVirtualThreadPerTaskExecutor = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static MethodHandle lookup() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        return NewVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * @return an executor which runs each task on a new virtual thread, or on a
+     *         new (or idle cached) platform thread if this JDK doesn't support them.
+     *         Like virtual threads, the platform threads are daemon threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (NewVirtualThreadPerTaskExecutor != null) {
+            try {
+                return (ExecutorService) NewVirtualThreadPerTaskExecutor.invokeExact();
+            } catch (Throwable e) {
+                System.out.println("VirtualThreads: Could not create a virtual thread executor, using platform threads: " + e);
+            }
+        } else {
+            System.out.println("VirtualThreads: Virtual threads need JDK 21+, using platform threads");
+        }
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,37 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes everything written on to the wrapped stream, counting the bytes,
+ * so the advice can report the size of the response body.
+ */
+public final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write the array a byte at a time
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long count() {
+        return count;
+    }
+}
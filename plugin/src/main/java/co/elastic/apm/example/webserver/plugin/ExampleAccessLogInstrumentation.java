@@ -0,0 +1,63 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static net.bytebuddy.matcher.ElementMatchers.isStatic;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * For detailed documentation of the 3 overridden methods, see the
+ * ExampleHttpServerInstrumentation class in this package.
+ *
+ * This matches the static `AccessLog.currentTraceId()` method of the example
+ * application, which returns null, and replaces its return value with the trace id
+ * of the current span. That correlates the access log lines with the transactions,
+ * without the application depending on a tracing API. As the method is called for
+ * each line logged, and only by the thread logging it, the current span is the one
+ * for the request being handled.
+ */
+public class ExampleAccessLogInstrumentation extends ElasticApmInstrumentation {
+    @Override
+    public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+        return named("co.elastic.apm.example.webserver.AccessLog");
+    }
+
+    @Override
+    public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+        return named("currentTraceId").and(takesArguments(0)).and(isStatic());
+    }
+
+    /**
+     * The extra group name allows log correlation to be disabled on its own
+     */
+    @Override
+    public Collection<String> getInstrumentationGroupNames() {
+        return Arrays.asList("elastic-plugin-example", "elastic-plugin-example-log-correlation");
+    }
+
+    public static class AdviceClass {
+        /**
+         * The advice isn't inlined, so it can't assign to `@Advice.Return` directly.
+         * Instead `@Advice.AssignReturned.ToReturned` tells Byte Buddy to use the
+         * value this method returns as the return value of `currentTraceId()`
+         *
+         * @return the trace id of the current span, or null if there is no valid one
+         */
+        @Advice.OnMethodExit(suppress = Throwable.class, inline = false)
+        @Advice.AssignReturned.ToReturned
+        public static String onExitCurrentTraceId() {
+            SpanContext context = Span.current().getSpanContext();
+            return context.isValid() ? context.getTraceId() : null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import com.sun.net.httpserver.HttpExchange;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static net.bytebuddy.matcher.ElementMatchers.hasSuperType;
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isBootstrapClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.isExtensionClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.isInterface;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * For detailed documentation of the overridden methods, see the
+ * ExampleHttpServerInstrumentation class in this package.
+ *
+ * This traces every implementation of the JDK HttpServer's
+ * `com.sun.net.httpserver.HttpHandler.handle(HttpExchange)`, including the
+ * handlers of `ExampleAlreadyInstrumentedHttpServer`. The span is named from
+ * the request method and the path of the handler's context, eg "GET /exit",
+ * rather than the requested URI, which keeps the cardinality as low as the
+ * number of contexts. The response status code and body size are recorded
+ * as span attributes.
+ *
+ * Matching by hierarchy means walking the super types of every class the
+ * matcher sees, so two cheap filters run first: classes loaded by the
+ * bootstrap and platform class loaders (ie the JDK's own handlers) are
+ * skipped (see {@code getClassLoaderMatcher}), and only classes whose name
+ * starts with the `example_http_handler_prefix` option are considered (see
+ * {@code getTypeMatcherPreFilter}). The option defaults to the package of the
+ * example application, "co.elastic.apm.example." - set it to the package
+ * holding your handlers, eg "com.mycompany.". An empty value is treated as
+ * not set, as matching every class would defeat the filter.
+ *
+ * The agent's own apm-jdk-httpserver-plugin also instruments the JDK HttpServer,
+ * so if both are enabled this span is a child of the agent's transaction.
+ * The extra group name lets this instrumentation be disabled on its own.
+ */
+public class ExampleHttpHandlerInstrumentation extends ElasticApmInstrumentation {
+    static final String DEFAULT_HANDLER_PREFIX = "co.elastic.apm.example.";
+
+    /**
+     * Evaluated before {@code getTypeMatcher}, on the class name alone
+     */
+    @Override
+    public ElementMatcher<? super NamedElement> getTypeMatcherPreFilter() {
+        return nameStartsWith(handlerPrefix(PluginConfig.get("example_http_handler_prefix", DEFAULT_HANDLER_PREFIX)));
+    }
+
+    /**
+     * @param configured the value of the `example_http_handler_prefix` option
+     * @return the prefix of the handler class names to consider
+     */
+    static String handlerPrefix(String configured) {
+        String prefix = configured.trim();
+        return prefix.isEmpty() ? DEFAULT_HANDLER_PREFIX : prefix;
+    }
+
+    @Override
+    public ElementMatcher.Junction<ClassLoader> getClassLoaderMatcher() {
+        return not(isBootstrapClassLoader()).and(not(isExtensionClassLoader()));
+    }
+
+    @Override
+    public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+        return not(isInterface()).and(hasSuperType(named("com.sun.net.httpserver.HttpHandler")));
+    }
+
+    @Override
+    public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+        return named("handle").and(takesArguments(1)).and(not(isAbstract()))
+                .and(takesArgument(0, named("com.sun.net.httpserver.HttpExchange")));
+    }
+
+    @Override
+    public Collection<String> getInstrumentationGroupNames() {
+        return Arrays.asList("elastic-plugin-example", "elastic-plugin-example-jdk-httpserver");
+    }
+
+    public static class AdviceClass {
+        /**
+         * The response body is replaced with a {@link CountingOutputStream} wrapping it,
+         * which also marks the exchange as seen. That is done before the sampling decision,
+         * so a handler which delegates to another handler neither samples the same exchange
+         * again nor gets a second span for it. (HttpExchange attributes can't be used for
+         * that, as older JDKs share them across the context.)
+         *
+         * @return a {@link RequestState} holding the started span and its scope, or
+         *         null if the exchange is already traced, ignored or not sampled
+         */
+        @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+        public static Object onEnterHandle(@Advice.Argument(0) HttpExchange exchange) {
+            if (exchange.getResponseBody() instanceof CountingOutputStream) {
+                return null;
+            }
+            String path = exchange.getRequestURI().getRawPath();
+            if (path == null
+                    || IgnoredRequests.shouldIgnoreUrlPath(path, exchange.getRequestHeaders().getFirst("User-Agent"))) {
+                return null;
+            }
+            exchange.setStreams(null, new CountingOutputStream(exchange.getResponseBody()));
+            String request = RequestLineParser.spanName(exchange.getRequestMethod() + ' ' + exchange.getHttpContext().getPath());
+            if (request == null || !RequestSampler.isSampled(request)) {
+                return null;
+            }
+            Span span = TelemetryHolder.tracer().spanBuilder(request).setSpanKind(SpanKind.SERVER).startSpan();
+            return new RequestState(span, span.makeCurrent());
+        }
+
+        /**
+         * A handler which sends its response after `handle()` returns, eg from
+         * another thread, gets the status and size sent by then
+         */
+        @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+        public static void onExitHandle(@Advice.Argument(0) HttpExchange exchange,
+                                        @Advice.Thrown Throwable thrown, @Advice.Enter Object stateObject) {
+            if (stateObject == null) {
+                return;
+            }
+            RequestState state = (RequestState) stateObject;
+            try {
+                Span span = state.span;
+                try {
+                    int status = exchange.getResponseCode();
+                    if (status > 0) {
+                        span.setAttribute(HttpAttributes.RESPONSE_STATUS_CODE, status);
+                    }
+                    OutputStream body = exchange.getResponseBody();
+                    if (body instanceof CountingOutputStream) {
+                        span.setAttribute(HttpAttributes.RESPONSE_BODY_SIZE, ((CountingOutputStream) body).count());
+                    }
+                    if (thrown != null) {
+                        span.setStatus(StatusCode.ERROR);
+                        span.recordException(thrown);
+                    } else if (status >= 500) {
+                        span.setStatus(StatusCode.ERROR);
+                    } else {
+                        span.setStatus(StatusCode.OK);
+                    }
+                } finally {
+                    span.end();
+                }
+            } finally {
+                state.scope.close();
+            }
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package co.elastic.apm.example.webserver.plugin;
 
+import static net.bytebuddy.matcher.ElementMatchers.isBootstrapClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
 import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static net.bytebuddy.matcher.ElementMatchers.returns;
 import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
 import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.function.LongSupplier;
 
 import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
-import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.NamedElement;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
@@ -23,11 +31,18 @@ import net.bytebuddy.matcher.ElementMatcher;
  * This class basically implements that: if the class
  * `co.elastic.apm.example.webserver.ExampleBasicHttpServer`
  * gets loaded, and it has any methods matching the signature
- * `handleRequest(String,x,y)` (return type doesn't matter,
- * nor do the types of the 2nd and 3rd argument), then it
+ * `int handleRequest(String,x,y)` (the types of the 2nd
+ * and 3rd argument don't matter), then it
  * will instrument that `handleRequest` method to add a Span
  * which starts at method entry and finishes at method exit.
  *
+ * The same advice also records the request metrics, with both the
+ * OpenTelemetry metrics API and Micrometer (see {@link InstrumentRegistry}).
+ * A single instrumentation means the agent matches the type and method once
+ * and weaves one pair of advice calls into `handleRequest`, rather than one
+ * per instrumentation matching the same method. The request line is also
+ * only parsed and checked against the ignore options once per request.
+ *
  * The Elastic Java agent finds this class as follows:
  * 1. It looks for the `plugins` directory which is either
  * 1a. in the agent home directory (where the agent jar file was placed), or
@@ -41,6 +56,24 @@ import net.bytebuddy.matcher.ElementMatcher;
  */
 public class ExampleHttpServerInstrumentation extends ElasticApmInstrumentation {
 
+    /**
+     * The agent asks this before {@code getTypeMatcher}, with just the class name,
+     * so cheap checks here save evaluating the full matcher for most classes
+     */
+    @Override
+    public ElementMatcher<? super NamedElement> getTypeMatcherPreFilter() {
+        return nameStartsWith("co.elastic.apm.example.webserver.");
+    }
+
+    /**
+     * The application is never loaded by the bootstrap class loader, so classes
+     * loaded by it (ie most of the JDK) needn't be matched at all
+     */
+    @Override
+    public ElementMatcher.Junction<ClassLoader> getClassLoaderMatcher() {
+        return not(isBootstrapClassLoader());
+    }
+
     /**
      * This instrumentation will get triggered when both the Elastic Java agent
      *  is loaded, and the class `ExampleBasicHttpServer` is loaded
@@ -57,13 +90,13 @@ public class ExampleHttpServerInstrumentation extends ElasticApmInstrumentation
     }
 
     /**
-     * This looks for the method signature `handleRequest(String,x,y)`
-     * for the classes identified by {@code getTypeMatcher}. You could also
-     * specify the return type and other aspects of the method signature
+     * This looks for the method signature `int handleRequest(String,x,y)`
+     * for the classes identified by {@code getTypeMatcher}. The return type
+     * is matched too, as the exit advice binds the returned status code as an `int`
      */
     @Override
     public ElementMatcher<? super MethodDescription> getMethodMatcher() {
-        return named("handleRequest").and(takesArguments(3))
+        return named("handleRequest").and(takesArguments(3)).and(returns(int.class))
                 .and(takesArgument(0, named("java.lang.String")));
     }
 
@@ -125,66 +158,97 @@ public class ExampleHttpServerInstrumentation extends ElasticApmInstrumentation
          *     <li>the method must have a `public static` signature
          *     <li>the method can return an object or be void
          *     <li>the method name (here `onEnterHandle`) can be any valid method name
-         *     <li>`@Advice.Argument(0) String requestLine` lets us use `requestLine` holding
-         *     the value of the first String parameter of ExampleBasicHttpServer.handleRequest()
+         *     <li>`@Advice.Argument(0) CharSequence requestLine` lets us use `requestLine` holding
+         *     the value of the first parameter of ExampleBasicHttpServer.handleRequest(). A String
+         *     argument can be bound to a CharSequence, so the same advice also applies to
+         *     `ExampleNioHttpServer.handleRequest()`, where it is a view over the request bytes
+         *     <li>`@Advice.Argument(1) Object headerLines` lets us use `headerLines` holding
+         *     the value of the second parameter, the request header lines. Declaring it as
+         *     `Object` means the advice still applies whatever the type of that parameter
          *     <li>`suppress` means that if any Throwable exception is thrown while the method runs,
          *     that exception will be suppressed (not thrown by ExampleBasicHttpServer.handleRequest()
          *     nor make it exit early)
          *     <li>`inline` `false` means that the code in `onEnterHandle()` will not be inlined into
          *     `ExampleBasicHttpServer.handleRequest()`, instead `ExampleHttpServerInstrumentation$AdviceClass.onEnterHandle()`
-         *     will be called on entry of `ExampleBasicHttpServer.handleRequest()`
+         *     will be called on entry of `ExampleBasicHttpServer.handleRequest()`. The agent requires this
+         *     for plugins: the advice is loaded by the plugin class loader, which the instrumented class
+         *     can't see, and called through invokedynamic. The call is bound once, so the JIT can still
+         *     inline it - the AdviceInliningBenchmark compares this with inlined advice
          * </ul>
          *
-         * @return the Scope object so that the `OnMethodExit` {@code onExitHandle} method can get that
-         *         object and close it. This is best practice for scope handling
+         * The request metrics are recorded here too: the OpenTelemetry `page_views` counter
+         * and the Micrometer `page_counter` counter, both tagged with the route, are incremented for
+         * every request that isn't ignored, whether or not it is sampled. The agent provides
+         * both, see https://www.elastic.co/guide/en/apm/agent/java/master/opentelemetry-bridge.html#otel-metrics
+         * and https://www.elastic.co/guide/en/apm/agent/java/current/metrics.html#metrics-micrometer
+         *
+         * @return a {@link RequestState} holding the Scope object, so that the `OnMethodExit`
+         *         {@code onExitHandle} method can get that object and close it (this is best
+         *         practice for scope handling), and the start time to record the duration,
+         *         or null if the request is ignored. Unsampled requests still need one, for
+         *         the start time
          */
         @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
-        public static Object onEnterHandle(@Advice.Argument(0) String requestLine) {
+        public static Object onEnterHandle(@Advice.Argument(0) CharSequence requestLine,
+                                           @Advice.Argument(1) Object headerLines) {
             //ExampleBasicHttpServer.handleRequest() has the full HTTP line for a request
-            //so first we'll strip off the part after the URI request path, ie
+            //and we'll just use the method and base URI path for the name, ie
             // requestLine = "GET /something?y#x HTTP/1.1"
-            // fullRequest = "GET /something?y#x"
-            String fullRequest = requestLine.substring(0, requestLine.indexOf(" HTTP"));
-            //We'll just use the base URI path for the name, ie
-            // fullRequest = "GET /something?y#x"
             // request = "GET /something"
             // this is so that we have a lower cardinality name, essential
-            // for good indexing and composition
-            String request = basicRequestPath(fullRequest);
+            // for good indexing and composition. The parser scans the line once
+            // and returns a cached name, so this doesn't allocate after warm-up
+            String request = RequestLineParser.spanName(requestLine);
             //Support ignoring some subset of requests
-            if (shouldIgnoreThisRequest(request)) {
+            if (request == null || shouldIgnoreThisRequest(request, headerLines)) {
                 return null;
             }
-            // This is the recommended way to obtain the tracer with the Elastic OpenTelemetry bridge
-            Tracer tracer = GlobalOpenTelemetry.get().getTracer("ExampleHttpServer");
-            Span span = tracer.spanBuilder(request).setSpanKind(SpanKind.SERVER).startSpan();
-            //return the scope object so that it can be closed in the OnMethodExit method
-            return span.makeCurrent();
-        }
-
-        private static String basicRequestPath(String request) {
-            int index = request.indexOf("?");
-            if (index > 0) {
-                request = request.substring(0, index);
+            //The counters are created once and cached by the registry, so
+            //the hot path doesn't go through any registry lookups
+            InstrumentRegistry.pageViews().add(1, RouteAttributes.of(request));
+            InstrumentRegistry.pageCounter(request).increment();
+            //A request from a traced caller carries its trace context in the W3C
+            //`traceparent` header, in which case the span continues that trace
+            Context parent = TraceContextHeaders.extract(headerLines);
+            SpanContext remoteParent = Span.fromContext(parent).getSpanContext();
+            //Support head-based sampling, so that requests which are not sampled
+            //skip creating the span and making it current altogether. They are
+            //still counted and timed, so the metrics cover every request. If the
+            //caller already decided whether the trace is sampled, that decision is
+            //followed, so work the caller dropped isn't traced here either
+            boolean sampled = remoteParent.isRemote()
+                    ? remoteParent.isSampled()
+                    : RequestSampler.isSampled(request);
+            Span span = null;
+            Scope scope = null;
+            if (sampled) {
+                // The holder caches the tracer obtained from GlobalOpenTelemetry, which is
+                // the recommended way to obtain the tracer with the Elastic OpenTelemetry bridge
+                Tracer tracer = TelemetryHolder.tracer();
+                SpanBuilder spanBuilder = tracer.spanBuilder(request).setSpanKind(SpanKind.SERVER)
+                        .setParent(parent);
+                //Selected headers become attributes, set before the span starts so
+                //that samplers can see them too
+                HeaderAttributes.addTo(spanBuilder, headerLines);
+                span = spanBuilder.startSpan();
+                scope = span.makeCurrent();
             }
-            index = request.indexOf("#");
-            if (index > 0) {
-                request = request.substring(0, index);
-            }
-            return request;
+            //return the span and scope so that they can be ended and closed in the OnMethodExit method
+            return new RequestState(request, System.nanoTime(), span, scope);
         }
 
         /**
-         * A more complete implementation would ignore the request if it
-         * is a type that the various configuration options say to ignore:
+         * Ignores the request if it is a type that the various configuration options say to ignore:
          * https://www.elastic.co/guide/en/apm/agent/java/current/config-http.html#config-transaction-ignore-urls
          * https://www.elastic.co/guide/en/apm/agent/java/current/config-http.html#config-transaction-ignore-user-agents
+         * Ignored requests get neither a span nor a count
          *
          * @param request the HTTP request being processed
+         * @param headerLines the HTTP request header lines
          * @return false if this request should be traced, otherwise true
          */
-        private static boolean shouldIgnoreThisRequest(String request) {
-            return false;
+        static boolean shouldIgnoreThisRequest(String request, Object headerLines) {
+            return IgnoredRequests.shouldIgnore(request, headerLines);
         }
 
         /**
@@ -195,11 +259,18 @@ public class ExampleHttpServerInstrumentation extends ElasticApmInstrumentation
          *     <li>the method must have a `public static` signature
          *     <li>the method can return an object or be void
          *     <li>the method name (here `onExitHandle`) can be any valid method name
-         *     <li>`(@Advice.Thrown Throwable thrown` lets us use `thrown` as the value
+         *     <li>`@Advice.Return int statusCode` lets us use `statusCode` as the value returned
+         *     by `ExampleBasicHttpServer.handleRequest()`, the HTTP status code of the response.
+         *     It is bound as the `int` it is, so nothing is boxed, which is why {@code getMethodMatcher}
+         *     only matches a `handleRequest` returning `int`. If the method throws, it is 0
+         *     <li>`@Advice.Argument(2) Object response` lets us use `response` holding the value of
+         *     the third parameter, where the response was written to. If it is a `LongSupplier`,
+         *     as for ExampleBasicHttpServer, it supplies the number of body bytes written
+         *     <li>`@Advice.Thrown Throwable thrown` lets us use `thrown` as the value
          *     of any exception thrown by `ExampleBasicHttpServer.handleRequest()` - it
          *     has a null value if no exception was thrown
-         *     <li>`@Advice.Enter Object scopeObject` lets us use `scopeObject` holding
-         *     the value of the Scope object returned from the {@code onEnterHandle} method
+         *     <li>`@Advice.Enter Object stateObject` lets us use `stateObject` holding
+         *     the value of the RequestState object returned from the {@code onEnterHandle} method
          *     <li>`suppress` means that if any Throwable exception is thrown while the method runs,
          *     that exception will be suppressed (not thrown by `ExampleBasicHttpServer.handleRequest()`
          *     nor make it exit early)
@@ -210,26 +281,63 @@ public class ExampleHttpServerInstrumentation extends ElasticApmInstrumentation
          *     will be called on entry of `ExampleBasicHttpServer.handleRequest()`
          * </ul>
          *
+         * The span gets the status code as the `http.response.status_code` attribute, the
+         * number of body bytes written as `http.response.body.size` if known, and
+         * the outcome as its status: ERROR if an exception was thrown or the status code
+         * is a server error (5xx), otherwise OK.
+         *
+         * The duration of the request is recorded in milliseconds in the `request_duration`
+         * histogram, tagged with the route, ie the same low cardinality name as the span, so
+         * that latency percentiles are available per route without fetching every transaction.
+         * The Attributes for the route are cached by {@link RouteAttributes}, so recording
+         * doesn't allocate.
+         *
+         * @param statusCode - the status code returned from `ExampleBasicHttpServer.handleRequest()`,
+         *                   or 0 if it threw
+         * @param response - the third parameter of `ExampleBasicHttpServer.handleRequest()`
          * @param thrown - any exception thrown from `ExampleBasicHttpServer.handleRequest()`
-         * @param scopeObject - the Scope object returned from {@code onEnterHandle}
+         * @param stateObject - the RequestState returned from {@code onEnterHandle}, or null
+         *                    if the request was ignored and so there is nothing to end
          */
         @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
-        public static void onExitHandle(@Advice.Thrown Throwable thrown, @Advice.Enter Object scopeObject) {
+        public static void onExitHandle(@Advice.Return int statusCode,
+                                        @Advice.Argument(2) Object response,
+                                        @Advice.Thrown Throwable thrown, @Advice.Enter Object stateObject) {
+            if (stateObject == null) {
+                return;
+            }
+            RequestState state = (RequestState) stateObject;
             //Use a defensive implementation - nothing
             //that might fail will prevent anything else
             try {
-                Span span = Span.current();
-                try {
-                    if (thrown != null) {
-                        span.setStatus(StatusCode.ERROR);
-                        span.recordException(thrown);
+                if (state.span != null) {
+                    try {
+                        Span span = state.span;
+                        try {
+                            if (statusCode > 0) {
+                                span.setAttribute(HttpAttributes.RESPONSE_STATUS_CODE, statusCode);
+                            }
+                            if (response instanceof LongSupplier) {
+                                span.setAttribute(HttpAttributes.RESPONSE_BODY_SIZE, ((LongSupplier) response).getAsLong());
+                            }
+                            if (thrown != null) {
+                                span.setStatus(StatusCode.ERROR);
+                                span.recordException(thrown);
+                            } else if (statusCode >= 500) {
+                                span.setStatus(StatusCode.ERROR);
+                            } else {
+                                span.setStatus(StatusCode.OK);
+                            }
+                        } finally {
+                            span.end();
+                        }
+                    } finally {
+                        state.scope.close();
                     }
-                } finally {
-                    span.end();
                 }
-            } finally{
-                Scope scope = (Scope) scopeObject;
-                scope.close();
+            } finally {
+                double durationMillis = (System.nanoTime() - state.startNanos) / 1_000_000.0;
+                InstrumentRegistry.requestDuration().record(durationMillis, RouteAttributes.of(state.route));
             }
         }
     }
@@ -0,0 +1,40 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.returns;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+/**
+ * Instruments `co.elastic.apm.example.webserver.ExampleNioHttpServer` in the same
+ * way as {@link ExampleHttpServerInstrumentation} instruments `ExampleBasicHttpServer`:
+ * a Span which starts at entry to `int handleRequest(CharSequence,x,y)` and finishes at exit.
+ *
+ * Only the matchers differ, the advice is the same {@link ExampleHttpServerInstrumentation.AdviceClass},
+ * as that binds the request line as a CharSequence. Here the request line is a view over
+ * the bytes the server read, which is only valid during the call, so the advice must not
+ * keep a reference to it - {@link RequestLineParser} only ever keeps String copies.
+ *
+ * Like every instrumentation, this class has to be listed in
+ * META-INF/services/co.elastic.apm.agent.sdk.ElasticApmInstrumentation
+ */
+public class ExampleNioHttpServerInstrumentation extends ExampleHttpServerInstrumentation {
+
+    @Override
+    public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+        return named("co.elastic.apm.example.webserver.ExampleNioHttpServer");
+    }
+
+    /**
+     * This looks for the method signature `int handleRequest(CharSequence,x,y)`
+     */
+    @Override
+    public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+        return named("handleRequest").and(takesArguments(3)).and(returns(int.class))
+                .and(takesArgument(0, named("java.lang.CharSequence")));
+    }
+}
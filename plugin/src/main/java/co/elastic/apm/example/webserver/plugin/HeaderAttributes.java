@@ -0,0 +1,66 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adds selected request headers to the span as the attributes
+ * `http.request.header.<name>`, eg `http.request.header.user-agent`.
+ *
+ * The headers are chosen with the option `example_capture_headers`, a comma
+ * separated list of header names (default "User-Agent, Host, Content-Length,
+ * traceparent"), or an empty value to capture none. Options are read as
+ * described in {@link PluginConfig}.
+ *
+ * The names and attribute keys are built once, when this class is initialized.
+ * Each request's header lines are looked up for each name of that small list
+ * (see {@link HeaderLines}), and only the values of the captured headers are
+ * copied, so no Map is built.
+ */
+public final class HeaderAttributes {
+    private static final String DEFAULT_HEADERS = "User-Agent, Host, Content-Length, traceparent";
+
+    private static final String[] NAMES;
+    private static final List<AttributeKey<String>> KEYS;
+
+    static {
+        List<String> names = new ArrayList<>();
+        for (String name : PluginConfig.get("example_capture_headers", DEFAULT_HEADERS).split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        NAMES = names.toArray(new String[0]);
+        List<AttributeKey<String>> keys = new ArrayList<>(NAMES.length);
+        for (String name : NAMES) {
+            keys.add(AttributeKey.stringKey("http.request.header." + name.toLowerCase(Locale.ROOT)));
+        }
+        KEYS = keys;
+    }
+
+    private HeaderAttributes() {
+    }
+
+    /**
+     * @param spanBuilder the builder of the span for the request
+     * @param headerLines the raw header lines of the request, eg "User-Agent: curl/7.81.0",
+     *                    as a `List` of `String`s - any other type is treated as no headers
+     */
+    public static void addTo(SpanBuilder spanBuilder, Object headerLines) {
+        if (NAMES.length == 0 || !(headerLines instanceof List)) {
+            return;
+        }
+        List<?> lines = (List<?>) headerLines;
+        for (int i = 0; i < NAMES.length; i++) {
+            String value = HeaderLines.value(lines, NAMES[i]);
+            if (value != null) {
+                spanBuilder.setAttribute(KEYS.get(i), value);
+            }
+        }
+    }
+}
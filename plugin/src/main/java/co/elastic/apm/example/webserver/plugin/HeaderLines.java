@@ -0,0 +1,72 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.List;
+
+/**
+ * Looks up headers in the raw header lines of a request, eg "User-Agent: curl/7.81.0",
+ * so no Map of headers is built. Names are matched ignoring case, and values are
+ * trimmed as by {@link String#trim}.
+ *
+ * The lines are indexed rather than iterated, to avoid allocating an Iterator,
+ * and any line that isn't a String is skipped.
+ */
+final class HeaderLines {
+
+    private HeaderLines() {
+    }
+
+    /**
+     * @return the index of the first line holding the header, or -1 if there is none
+     */
+    static int indexOf(List<?> lines, String name) {
+        for (int i = 0; i < lines.size(); i++) {
+            Object line = lines.get(i);
+            if (line instanceof String) {
+                String header = (String) line;
+                if (header.length() > name.length() && header.charAt(name.length()) == ':'
+                        && header.regionMatches(true, 0, name, 0, name.length())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of the first line holding the header, or null if there is none
+     */
+    static String value(List<?> lines, String name) {
+        int index = indexOf(lines, name);
+        if (index < 0) {
+            return null;
+        }
+        String header = (String) lines.get(index);
+        int start = valueStart(header, name);
+        return header.substring(start, valueEnd(header, start));
+    }
+
+    /**
+     * With {@link #valueEnd}, lets the value be matched in place, without copying it
+     *
+     * @param header a line holding the header, as found by {@link #indexOf}
+     * @return the index of the first character of the value
+     */
+    static int valueStart(String header, String name) {
+        int start = name.length() + 1;
+        while (start < header.length() && header.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return the index after the last character of the value
+     */
+    static int valueEnd(String header, int valueStart) {
+        int end = header.length();
+        while (end > valueStart && header.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
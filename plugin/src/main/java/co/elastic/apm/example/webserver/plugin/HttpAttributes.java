@@ -0,0 +1,15 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.common.AttributeKey;
+
+/**
+ * The span attributes describing the HTTP response, named as in the
+ * OpenTelemetry semantic conventions for HTTP servers.
+ */
+public final class HttpAttributes {
+    public static final AttributeKey<Long> RESPONSE_STATUS_CODE = AttributeKey.longKey("http.response.status_code");
+    public static final AttributeKey<Long> RESPONSE_BODY_SIZE = AttributeKey.longKey("http.response.body.size");
+
+    private HttpAttributes() {
+    }
+}
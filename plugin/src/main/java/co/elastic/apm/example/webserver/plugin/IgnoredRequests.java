@@ -0,0 +1,68 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.List;
+
+/**
+ * Decides which requests are not traced or counted, honoring the agent options
+ * https://www.elastic.co/guide/en/apm/agent/java/current/config-http.html#config-transaction-ignore-urls
+ * https://www.elastic.co/guide/en/apm/agent/java/current/config-http.html#config-transaction-ignore-user-agents
+ *
+ * The patterns are read and compiled once, when this class is initialized,
+ * with the same defaults as the agent. The URL patterns are matched against
+ * the path of the request (ie without the query or fragment), and the
+ * user-agent patterns against the value of the User-Agent header.
+ */
+public final class IgnoredRequests {
+    private static final String DEFAULT_IGNORE_URLS = "/VAADIN/*, /heartbeat*, /favicon.ico, *.js, *.css, "
+            + "*.jpg, *.jpeg, *.png, *.gif, *.webp, *.svg, *.woff, *.woff2";
+    private static final String USER_AGENT = "User-Agent";
+
+    private static final WildcardMatcherSet IGNORE_URLS =
+            WildcardMatcherSet.compile(PluginConfig.get("transaction_ignore_urls", DEFAULT_IGNORE_URLS));
+    private static final WildcardMatcherSet IGNORE_USER_AGENTS =
+            WildcardMatcherSet.compile(PluginConfig.get("transaction_ignore_user_agents", ""));
+
+    private IgnoredRequests() {
+    }
+
+    /**
+     * @param spanName the name from {@link RequestLineParser#spanName}, eg "GET /something"
+     * @param headerLines the raw header lines of the request, eg "User-Agent: curl/7.81.0",
+     *                    as a `List` of `String`s - any other type is treated as no headers
+     * @return true if this request should not be traced nor counted
+     */
+    public static boolean shouldIgnore(String spanName, Object headerLines) {
+        return IGNORE_URLS.matches(spanName, spanName.indexOf(' ') + 1, spanName.length())
+                || (!IGNORE_USER_AGENTS.isEmpty() && isIgnoredUserAgent(IGNORE_USER_AGENTS, headerLines));
+    }
+
+    /**
+     * @param path the path of the request URL, eg "/something"
+     * @param userAgent the value of the User-Agent header, or null if there is none
+     * @return true if this request should not be traced nor counted
+     */
+    public static boolean shouldIgnoreUrlPath(String path, String userAgent) {
+        return IGNORE_URLS.matches(path, 0, path.length())
+                || (userAgent != null && !IGNORE_USER_AGENTS.isEmpty()
+                    && IGNORE_USER_AGENTS.matches(userAgent, 0, userAgent.length()));
+    }
+
+    /**
+     * @return true if the value of the User-Agent header, trimmed as by
+     *         {@link String#trim}, matches any of the patterns
+     */
+    static boolean isIgnoredUserAgent(WildcardMatcherSet ignoreUserAgents, Object headerLines) {
+        if (!(headerLines instanceof List)) {
+            return false;
+        }
+        List<?> lines = (List<?>) headerLines;
+        int index = HeaderLines.indexOf(lines, USER_AGENT);
+        if (index < 0) {
+            return false;
+        }
+        // matched in place, so the value isn't copied
+        String header = (String) lines.get(index);
+        int start = HeaderLines.valueStart(header, USER_AGENT);
+        return ignoreUserAgents.matches(header, start, HeaderLines.valueEnd(header, start));
+    }
+}
@@ -0,0 +1,160 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.CountingMode;
+import io.micrometer.core.instrument.simple.SimpleConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.time.Duration;
+
+/**
+ * Creates the metric instruments used by the advice classes, each exactly once.
+ *
+ * The OpenTelemetry instruments come from the Meter of {@link TelemetryHolder}, which
+ * is the no-op one until the agent's OpenTelemetry bridge is installed. So they are
+ * only created once the Meter is not the no-op one - until then the accessors return
+ * no-op instruments, and every request retries the Meter lookup, which can't be
+ * avoided as nothing tells the plugin when the bridge arrives.
+ *
+ * Once created, the instruments are bound into a MutableCallSite held in a static
+ * final field, the same way as the Tracer in {@link TelemetryHolder}, so after warm-up
+ * the accessors compile to the bound constant, with no volatile read or null check.
+ *
+ * The Micrometer registry doesn't depend on the agent, so it uses the
+ * initialization-on-demand holder idiom instead: it is set up in the static
+ * initializer of a nested holder class, which the JVM runs exactly once, on
+ * first use, however many threads arrive at the same time.
+ *
+ * Instruments tagged with the route can't all be created up front, so those are
+ * created on the first request for each route and then cached in a {@link RouteCache}.
+ * The routes beyond its limit share the instrument tagged with the route
+ * {@value RouteAttributes#OTHER_ROUTE}.
+ */
+public final class InstrumentRegistry {
+    private static final OpenTelemetryInstruments NOOP_OPEN_TELEMETRY =
+            new OpenTelemetryInstruments(MeterProvider.noop().get(TelemetryHolder.INSTRUMENTATION_NAME));
+
+    private static final MutableCallSite OPEN_TELEMETRY = new MutableCallSite(
+            TelemetryHolder.findStatic(MethodHandles.lookup(), "lookUpOpenTelemetry", OpenTelemetryInstruments.class));
+    private static final MethodHandle OPEN_TELEMETRY_INVOKER = OPEN_TELEMETRY.dynamicInvoker();
+
+    // only read and written holding the class lock, while the call site isn't bound
+    private static OpenTelemetryInstruments created;
+
+    private InstrumentRegistry() {
+    }
+
+    /**
+     * @return the OpenTelemetry `page_views` counter, to add to with the
+     *         {@link RouteAttributes} of the route
+     */
+    public static LongCounter pageViews() {
+        return openTelemetry().pageViews;
+    }
+
+    /**
+     * @return the OpenTelemetry `request_duration` histogram, in milliseconds
+     */
+    public static DoubleHistogram requestDuration() {
+        return openTelemetry().requestDuration;
+    }
+
+    /**
+     * @param route the low cardinality span name, eg "GET /something"
+     * @return the Micrometer `page_counter` counter tagged with that route
+     */
+    public static Counter pageCounter(String route) {
+        return MicrometerInstruments.PAGE_COUNTERS.get(route);
+    }
+
+    /**
+     * @return the instruments of the agent's Meter, or the no-op ones if it isn't available yet
+     */
+    private static OpenTelemetryInstruments openTelemetry() {
+        try {
+            return (OpenTelemetryInstruments) OPEN_TELEMETRY_INVOKER.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The target of the call site until the instruments are created, which then binds them
+     */
+    private static OpenTelemetryInstruments lookUpOpenTelemetry() {
+        Meter meter = TelemetryHolder.meter();
+        if (TelemetryHolder.isNoop(meter)) {
+            return NOOP_OPEN_TELEMETRY;
+        }
+        synchronized (InstrumentRegistry.class) {
+            if (created == null) {
+                created = new OpenTelemetryInstruments(meter);
+                TelemetryHolder.bind(OPEN_TELEMETRY, OpenTelemetryInstruments.class, created);
+            }
+            return created;
+        }
+    }
+
+    private static final class OpenTelemetryInstruments {
+        final LongCounter pageViews;
+        final DoubleHistogram requestDuration;
+
+        OpenTelemetryInstruments(Meter meter) {
+            pageViews = meter
+                    .counterBuilder("page_views")
+                    .setDescription("Page view count")
+                    .build();
+            requestDuration = meter
+                    .histogramBuilder("request_duration")
+                    .setDescription("Request duration")
+                    .setUnit("ms")
+                    .build();
+        }
+    }
+
+    private static final class MicrometerInstruments {
+        static {
+            // the registry must be added before the counter is created from the global registry
+            Metrics.addRegistry(new SimpleMeterRegistry(new SimpleConfig() {
+
+                @Override
+                public CountingMode mode() {
+                    // to report the delta since the last report
+                    // this makes building dashboards a bit easier
+                    return CountingMode.STEP;
+                }
+
+                @Override
+                public Duration step() {
+                    // the duration should match metrics_interval, which defaults to 30s
+                    return Duration.ofSeconds(30);
+                }
+
+                @Override
+                public String get(String key) {
+                    return null;
+                }
+            }, Clock.SYSTEM));
+        }
+
+        static final RouteCache<Counter> PAGE_COUNTERS = new RouteCache<>(
+                MicrometerInstruments::pageCounter, pageCounter(RouteAttributes.OTHER_ROUTE));
+
+        /**
+         * Going through the global registry means a map lookup and building a
+         * Meter.Id, which is why this is only called once per route
+         */
+        static Counter pageCounter(String route) {
+            return Metrics.counter("page_counter", "route", route);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.Locale;
+
+/**
+ * Reads the configuration options used by this plugin. The plugin SDK doesn't
+ * give plugins access to the agent configuration, so options are read the same
+ * way the agent reads them from the JVM and the environment, ie an option
+ * `transaction_ignore_urls` is taken from the system property
+ * `elastic.apm.transaction_ignore_urls` if that is set, otherwise from the
+ * environment variable `ELASTIC_APM_TRANSACTION_IGNORE_URLS`.
+ *
+ * Options that exist in the agent keep their agent names, so the plugin
+ * honors the same settings as the agent instrumentation. Options that only
+ * exist for this plugin are prefixed with `example_`.
+ *
+ * Options are read once, when the class using them is initialized.
+ */
+public final class PluginConfig {
+
+    private PluginConfig() {
+    }
+
+    /**
+     * @param option the option name, eg `transaction_ignore_urls`
+     * @param defaultValue the value to use if the option is not set
+     * @return the option value
+     */
+    public static String get(String option, String defaultValue) {
+        String value = System.getProperty("elastic.apm." + option);
+        if (value == null) {
+            value = System.getenv("ELASTIC_APM_" + option.toUpperCase(Locale.ROOT));
+        }
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,54 @@
+package co.elastic.apm.example.webserver.plugin;
+
+/**
+ * Turns an HTTP request line into the low cardinality name used for the span, ie
+ * <pre>
+ *   requestLine = "GET /something?y#x HTTP/1.1"
+ *   span name   = "GET /something"
+ * </pre>
+ * The name is the method plus the base URI path, so the query (after `?`) and
+ * the fragment (after `#`) are dropped. A lower cardinality name is essential
+ * for good indexing and composition.
+ *
+ * The request line is scanned just once: the first space ends the method,
+ * and the path ends at whichever comes first of `?`, `#` or the space before
+ * the protocol. The hash of the name is computed during that same scan, so
+ * that the name can be looked up in a {@link SpanNameCache} without first
+ * creating a String for it. After warm-up, repeated requests for the same
+ * route return the cached String and allocate nothing.
+ */
+public final class RequestLineParser {
+
+    private static final SpanNameCache NAMES = new SpanNameCache(1024);
+
+    private RequestLineParser() {
+    }
+
+    /**
+     * @param requestLine the full HTTP request line, eg "GET /something?y#x HTTP/1.1"
+     * @return the span name, eg "GET /something", or null if the
+     *         request line doesn't have both a method and a path
+     */
+    public static String spanName(CharSequence requestLine) {
+        int length = requestLine.length();
+        int methodEnd = -1;
+        int hash = 0;
+        int i = 0;
+        for (; i < length; i++) {
+            char c = requestLine.charAt(i);
+            if (c == ' ') {
+                if (methodEnd >= 0) {
+                    break; // end of the path, the protocol follows
+                }
+                methodEnd = i;
+            } else if ((c == '?' || c == '#') && methodEnd >= 0) {
+                break; // start of the query or the fragment
+            }
+            hash = 31 * hash + c;
+        }
+        if (methodEnd <= 0 || i == methodEnd + 1) {
+            return null;
+        }
+        return NAMES.get(requestLine, i, hash);
+    }
+}
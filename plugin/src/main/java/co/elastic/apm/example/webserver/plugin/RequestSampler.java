@@ -0,0 +1,130 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Head-based sampling for the server spans, decided before the span is created
+ * so that requests which are not sampled skip span creation and scope handling
+ * entirely. This is in addition to the agent's own `transaction_sample_rate`,
+ * which only applies once a span has been created. There are two options:
+ * <ul>
+ *     <li>`example_sample_rate` - the probability (0.0 to 1.0) of a request
+ *     being traced, default 1.0
+ *     <li>`example_max_transactions_per_second` - the maximum number of traced
+ *     requests per second for each span name (ie route), default 0 which
+ *     means no limit. Each route gets a token bucket holding up to a second's
+ *     worth of tokens, and the routes beyond the {@link RouteCache} limit share one
+ * </ul>
+ * Options are read as described in {@link PluginConfig}, into the one sampler
+ * used by the advice. Neither the probability check nor the token bucket takes a lock.
+ * An invalid value is reported on System.err and replaced by the default, rather than
+ * failing the class initialization and with it every request, and a rate outside
+ * 0.0 to 1.0 is clamped to that range.
+ */
+public final class RequestSampler {
+    private static final RequestSampler CONFIGURED = new RequestSampler(
+            sampleRate(PluginConfig.get("example_sample_rate", "1.0")),
+            maxTransactionsPerSecond(PluginConfig.get("example_max_transactions_per_second", "0")));
+
+    private final double sampleRate;
+    private final int maxTransactionsPerSecond;
+    private final RouteCache<TokenBucket> buckets;
+
+    RequestSampler(double sampleRate, int maxTransactionsPerSecond) {
+        this.sampleRate = sampleRate;
+        this.maxTransactionsPerSecond = maxTransactionsPerSecond;
+        this.buckets = new RouteCache<>(route -> new TokenBucket(maxTransactionsPerSecond),
+                new TokenBucket(maxTransactionsPerSecond));
+    }
+
+    /**
+     * @param value the `example_sample_rate` option
+     * @return the rate, clamped to 0.0 to 1.0, or 1.0 if the value isn't a number
+     */
+    static double sampleRate(String value) {
+        try {
+            double rate = Double.parseDouble(value.trim());
+            if (!Double.isNaN(rate)) {
+                return Math.max(0.0, Math.min(1.0, rate));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        warnInvalid("example_sample_rate", value, "1.0");
+        return 1.0;
+    }
+
+    /**
+     * @param value the `example_max_transactions_per_second` option
+     * @return the limit, or 0 (no limit) if the value isn't a non-negative integer
+     */
+    static int maxTransactionsPerSecond(String value) {
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        warnInvalid("example_max_transactions_per_second", value, "0");
+        return 0;
+    }
+
+    private static void warnInvalid(String option, String value, String defaultValue) {
+        System.err.println("Elastic APM plugin example: invalid " + option + " '" + value + "', using " + defaultValue);
+    }
+
+    /**
+     * @param spanName the name from {@link RequestLineParser#spanName}, eg "GET /something"
+     * @return true if this request should be traced
+     */
+    public static boolean isSampled(String spanName) {
+        return CONFIGURED.isSampled(spanName, System.nanoTime());
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     */
+    boolean isSampled(String spanName, long now) {
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+        return maxTransactionsPerSecond <= 0 || buckets.get(spanName).tryAcquire(now);
+    }
+
+    /**
+     * A token bucket refilling at `perSecond` tokens per second and holding at most
+     * `perSecond` tokens. Rather than a token count and a refill timestamp, which
+     * would need updating together, the whole state is the single time at which the
+     * bucket will next be full (the "generic cell rate algorithm" formulation).
+     * Taking a token pushes that time on by one token interval, and is refused if it
+     * would push it more than a full bucket's worth of intervals past now.
+     */
+    static final class TokenBucket {
+        private final long intervalNanos;
+        private final long capacityNanos;
+        private final AtomicLong fullAt;
+
+        TokenBucket(int perSecond) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(perSecond, 1);
+            this.capacityNanos = intervalNanos * Math.max(perSecond, 1);
+            this.fullAt = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = fullAt.get();
+                long next = (current - now > 0 ? current : now) + intervalNanos;
+                if (next - now > capacityNanos) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
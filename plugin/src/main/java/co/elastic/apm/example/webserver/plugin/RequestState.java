@@ -0,0 +1,44 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+
+/**
+ * What the combined `handleRequest` advice needs to carry from method entry to
+ * method exit. An advice method can only return one value to its exit advice,
+ * and this advice both traces the request and times it for the metrics.
+ * <p>
+ * The span is carried here rather than looked up with `Span.current()` on exit,
+ * which saves a context lookup and still ends the right span if the code being
+ * traced made another context current without closing it.
+ * <p>
+ * The `HttpHandler` advice only traces, so its state has just the span and scope.
+ * <p>
+ * There is one of these per request that isn't ignored, sampled or not, as the
+ * metrics time every request. `@Advice.Local` would avoid that, but only works for
+ * inlined advice, and the agent requires plugin advice not to be inlined.
+ */
+public final class RequestState {
+    /** the low cardinality name of the request, eg "GET /something", or null if not timed */
+    final String route;
+    /** the System.nanoTime() at method entry, or 0 if not timed */
+    final long startNanos;
+    /** the span started at entry, or null if the request isn't sampled */
+    final Span span;
+    /** the scope of that span, or null if the request isn't sampled */
+    final Scope scope;
+
+    RequestState(String route, long startNanos, Span span, Scope scope) {
+        this.route = route;
+        this.startNanos = startNanos;
+        this.span = span;
+        this.scope = scope;
+    }
+
+    /**
+     * For a request which is traced but not timed
+     */
+    RequestState(Span span, Scope scope) {
+        this(null, 0, span, scope);
+    }
+}
@@ -0,0 +1,27 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+
+/**
+ * The OpenTelemetry metric attributes for each route, where the route is the low
+ * cardinality span name from {@link RequestLineParser#spanName}, eg "GET /something".
+ *
+ * The Attributes for a route are built once and then reused for every request,
+ * so recording a metric against a route doesn't allocate. Routes beyond the
+ * {@link RouteCache} limit are all recorded as the route {@value OTHER_ROUTE}.
+ */
+public final class RouteAttributes {
+    public static final AttributeKey<String> ROUTE = AttributeKey.stringKey("route");
+    public static final String OTHER_ROUTE = "other";
+
+    private static final RouteCache<Attributes> ATTRIBUTES =
+            new RouteCache<>(route -> Attributes.of(ROUTE, route), Attributes.of(ROUTE, OTHER_ROUTE));
+
+    private RouteAttributes() {
+    }
+
+    public static Attributes of(String route) {
+        return ATTRIBUTES.get(route);
+    }
+}
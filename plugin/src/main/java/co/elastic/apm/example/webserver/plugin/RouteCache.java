@@ -0,0 +1,49 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Caches a value per route, where the route is the low cardinality span name from
+ * {@link RequestLineParser#spanName}, eg "GET /something". This is for the values
+ * built on the first request for a route and then reused for every later one, like
+ * its metric attributes, its Micrometer counter or its sampling token bucket.
+ *
+ * Once {@value MAX_ROUTES} routes are cached, any further routes all share the
+ * overflow value, so a flood of unique paths can't grow memory without bound.
+ */
+final class RouteCache<V> {
+    static final int MAX_ROUTES = 1000;
+
+    private final ConcurrentHashMap<String, V> values = new ConcurrentHashMap<>();
+    private final Function<String, V> factory;
+    private final V overflow;
+
+    /**
+     * @param factory builds the value for a route. The first requests for a route
+     *                racing each other may each build one, but only one is kept
+     * @param overflow the value shared by the routes that don't fit in the cache
+     */
+    RouteCache(Function<String, V> factory, V overflow) {
+        this.factory = factory;
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return the value for the route, or the overflow value if the cache is full
+     */
+    V get(String route) {
+        V value = values.get(route);
+        if (value == null) {
+            if (values.size() >= MAX_ROUTES) {
+                return overflow;
+            }
+            value = factory.apply(route);
+            V existing = values.putIfAbsent(route, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,65 @@
+package co.elastic.apm.example.webserver.plugin;
+
+/**
+ * A bounded cache of span names, so that requests for the same route
+ * share one String instead of each creating their own copy.
+ *
+ * Names are looked up by the characters of a prefix of some other
+ * CharSequence (eg the request line), so a hit doesn't need any String
+ * to be created first. The cache is a fixed size open-addressed table with
+ * a short probe sequence; when all the probed slots are taken by other names,
+ * the first slot is overwritten. This keeps memory bounded however many
+ * distinct paths are requested, at the cost of re-creating evicted names.
+ *
+ * There is no locking. Entries are Strings, which are immutable and so
+ * safely published even through a racy write; the worst a race can do
+ * is to lose an entry, which just gets re-created on the next miss.
+ */
+public final class SpanNameCache {
+    private static final int PROBES = 4;
+
+    private final String[] names;
+    private final int mask;
+
+    /**
+     * @param capacity the maximum number of names held, rounded up to a power of 2
+     */
+    public SpanNameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+        this.names = new String[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param source the characters holding the name
+     * @param length the name is the first `length` characters of `source`
+     * @param hash the {@link String#hashCode()} of the name
+     * @return a String equal to the first `length` characters of `source`
+     */
+    public String get(CharSequence source, int length, int hash) {
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (index + probe) & mask;
+            String name = names[slot];
+            if (name == null) {
+                return names[slot] = source.subSequence(0, length).toString();
+            }
+            if (name.hashCode() == hash && matches(name, source, length)) {
+                return name;
+            }
+        }
+        return names[index] = source.subSequence(0, length).toString();
+    }
+
+    private static boolean matches(String name, CharSequence source, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.TracerProvider;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Holds the OpenTelemetry Tracer and Meter used by the advice classes, so that
+ * they don't have to go through `GlobalOpenTelemetry.get()` on every request.
+ *
+ * With the Elastic OpenTelemetry bridge, `GlobalOpenTelemetry.get()` is what
+ * gets you the agent's implementation. But the bridge may not be installed
+ * yet when the advice first runs, in which case you get the no-op
+ * implementation. So the Tracer is only bound once it is not the no-op one -
+ * until then every call retries the global lookup, and so picks up the bridge
+ * as soon as it is installed. That per-call lookup can't be avoided while the
+ * bridge is missing, as nothing tells the plugin when it arrives.
+ *
+ * Once found, the Tracer is bound into a MutableCallSite held in a static final
+ * field. The JIT compiles a call through it as the constant it is bound to, and
+ * deoptimizes the callers the one time it is rebound, so after warm-up
+ * {@link #tracer()} has no volatile read or null check (see TelemetryHolderBenchmark).
+ *
+ * The Meter is only needed to create the instruments, once, so it is simply
+ * cached in a volatile field (see {@link InstrumentRegistry}).
+ */
+public final class TelemetryHolder {
+    /**
+     * The instrumentation scope name for both the Tracer and the Meter
+     */
+    public static final String INSTRUMENTATION_NAME = "ExampleHttpServer";
+
+    private static final Tracer NOOP_TRACER = TracerProvider.noop().get(INSTRUMENTATION_NAME);
+    private static final Meter NOOP_METER = MeterProvider.noop().get(INSTRUMENTATION_NAME);
+
+    private static final MutableCallSite TRACER =
+            new MutableCallSite(findStatic(MethodHandles.lookup(), "lookUpTracer", Tracer.class));
+    private static final MethodHandle TRACER_INVOKER = TRACER.dynamicInvoker();
+
+    private static volatile Meter meter;
+
+    private TelemetryHolder() {
+    }
+
+    public static Tracer tracer() {
+        try {
+            return (Tracer) TRACER_INVOKER.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Tracer lookUpTracer() {
+        // This is the recommended way to obtain the tracer with the Elastic OpenTelemetry bridge
+        Tracer current = GlobalOpenTelemetry.get().getTracer(INSTRUMENTATION_NAME);
+        if (current != NOOP_TRACER) {
+            bind(TRACER, Tracer.class, current);
+        }
+        return current;
+    }
+
+    public static Meter meter() {
+        Meter current = meter;
+        if (current == null) {
+            current = GlobalOpenTelemetry.getMeter(INSTRUMENTATION_NAME);
+            if (current != NOOP_METER) {
+                meter = current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return true if the meter is the no-op one, ie the bridge isn't installed yet
+     */
+    static boolean isNoop(Meter meter) {
+        return meter == NOOP_METER;
+    }
+
+    /**
+     * @param lookup the lookup of the class declaring the method, which can then be private
+     * @return a handle to the static no-argument method, for the initial target
+     *         of a call site, which looks the value up until it can be bound
+     */
+    static MethodHandle findStatic(MethodHandles.Lookup lookup, String name, Class<?> returnType) {
+        try {
+            return lookup.findStatic(lookup.lookupClass(), name, MethodType.methodType(returnType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Binds the call site to the value for good. Threads which haven't seen
+     * the new target yet just look the value up once more
+     */
+    static void bind(MutableCallSite site, Class<?> type, Object value) {
+        site.setTarget(MethodHandles.constant(type, value));
+        MutableCallSite.syncAll(new MutableCallSite[]{site});
+    }
+}
@@ -0,0 +1,66 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the W3C trace context (the `traceparent` and `tracestate` headers,
+ * https://www.w3.org/TR/trace-context/) of a request, so that the server span
+ * continues the caller's trace rather than starting a disconnected one.
+ *
+ * The headers are looked up directly in the raw header lines (see {@link HeaderLines}), eg
+ * "traceparent: 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01",
+ * so no Map of headers is built. The W3C propagator from the OpenTelemetry API
+ * is used directly, rather than the globally configured propagators, as this
+ * server only accepts the W3C format.
+ */
+public final class TraceContextHeaders {
+    private static final HeaderLinesGetter GETTER = new HeaderLinesGetter();
+
+    private TraceContextHeaders() {
+    }
+
+    /**
+     * @param headerLines the raw header lines of the request, as a `List` of `String`s -
+     *                    any other type is treated as no headers
+     * @return the current context with the caller's span as the parent, if the
+     *         request has a valid `traceparent` header, otherwise the current context
+     */
+    public static Context extract(Object headerLines) {
+        if (!(headerLines instanceof List)) {
+            return Context.current();
+        }
+        return W3CTraceContextPropagator.getInstance().extract(Context.current(), (List<?>) headerLines, GETTER);
+    }
+
+    /**
+     * Reads header values from a `List` of raw header lines, matching names ignoring case
+     */
+    static final class HeaderLinesGetter implements TextMapGetter<List<?>> {
+        /**
+         * Only needed by propagators which look for headers by prefix, so
+         * this builds a list, where {@code get} doesn't
+         */
+        @Override
+        public Iterable<String> keys(List<?> lines) {
+            List<String> keys = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                Object line = lines.get(i);
+                int colon = line instanceof String ? ((String) line).indexOf(':') : -1;
+                if (colon > 0) {
+                    keys.add(((String) line).substring(0, colon));
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        public String get(List<?> lines, String key) {
+            return lines == null ? null : HeaderLines.value(lines, key);
+        }
+    }
+}
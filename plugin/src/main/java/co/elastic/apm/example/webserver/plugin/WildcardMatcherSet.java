@@ -0,0 +1,249 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A set of wildcard patterns compiled into one matcher, following the agent's
+ * wildcard syntax (as used by eg `transaction_ignore_urls`):
+ * <ul>
+ *     <li>`*` matches zero or more characters, anywhere in the pattern
+ *     <li>matching is case insensitive, whatever the default locale, unless the pattern starts with `(?-i)`
+ *     <li>patterns in the option value are separated by commas
+ * </ul>
+ *
+ * The common shapes of pattern are compiled into tries, so the cost of testing
+ * a value doesn't grow with the number of patterns:
+ * <ul>
+ *     <li>`/exact` and `/prefix*` go into a prefix trie, walked from the start of the value
+ *     <li>`*.suffix` goes into a suffix trie, walked from the end of the value
+ *     <li>any other shape (eg `*infix*` or `/a*b`) is matched part by part
+ * </ul>
+ * No regular expressions are used and matching doesn't allocate.
+ */
+public final class WildcardMatcherSet {
+    private static final String CASE_SENSITIVE_PREFIX = "(?-i)";
+
+    private final Patterns caseInsensitive;
+    private final Patterns caseSensitive;
+
+    private WildcardMatcherSet(Patterns caseInsensitive, Patterns caseSensitive) {
+        this.caseInsensitive = caseInsensitive;
+        this.caseSensitive = caseSensitive;
+    }
+
+    /**
+     * @param patterns comma separated wildcard patterns, eg "/heartbeat*, *.js"
+     * @return the compiled patterns
+     */
+    public static WildcardMatcherSet compile(String patterns) {
+        Patterns caseInsensitive = new Patterns(true);
+        Patterns caseSensitive = new Patterns(false);
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.startsWith(CASE_SENSITIVE_PREFIX)) {
+                caseSensitive.add(pattern.substring(CASE_SENSITIVE_PREFIX.length()));
+            } else if (!pattern.isEmpty()) {
+                caseInsensitive.add(pattern.toLowerCase(Locale.ROOT));
+            }
+        }
+        return new WildcardMatcherSet(caseInsensitive.compile(), caseSensitive.compile());
+    }
+
+    /**
+     * @return true if no pattern was compiled, so nothing can match
+     */
+    public boolean isEmpty() {
+        return caseInsensitive == null && caseSensitive == null;
+    }
+
+    /**
+     * @param value holds the characters to test
+     * @param start the index of the first character to test
+     * @param end the index after the last character to test
+     * @return true if any pattern matches value[start,end)
+     */
+    public boolean matches(CharSequence value, int start, int end) {
+        return (caseInsensitive != null && caseInsensitive.matches(value, start, end))
+                || (caseSensitive != null && caseSensitive.matches(value, start, end));
+    }
+
+    private static char charAt(CharSequence value, int index, boolean ignoreCase) {
+        char c = value.charAt(index);
+        return ignoreCase ? Character.toLowerCase(c) : c;
+    }
+
+    /**
+     * The patterns sharing one case sensitivity
+     */
+    private static final class Patterns {
+        private final boolean ignoreCase;
+        private final TrieNode prefixes = new TrieNode();
+        private final TrieNode suffixes = new TrieNode();
+        private final List<String[]> others = new ArrayList<>();
+        private String[][] otherParts;
+        private boolean matchesAll;
+        private boolean isEmpty = true;
+
+        Patterns(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        void add(String pattern) {
+            isEmpty = false;
+            int firstWildcard = pattern.indexOf('*');
+            int lastWildcard = pattern.lastIndexOf('*');
+            if (firstWildcard < 0) {
+                prefixes.insert(pattern, false).exact = true;
+            } else if (pattern.chars().allMatch(c -> c == '*')) {
+                matchesAll = true;
+            } else if (firstWildcard == pattern.length() - 1) {
+                prefixes.insert(pattern.substring(0, firstWildcard), false).wildcard = true;
+            } else if (lastWildcard == 0) {
+                suffixes.insert(pattern.substring(1), true).wildcard = true;
+            } else {
+                // kept with empty parts where the pattern starts or ends with `*`
+                others.add(pattern.split("\\*", -1));
+            }
+        }
+
+        Patterns compile() {
+            otherParts = others.toArray(new String[0][]);
+            return isEmpty ? null : this;
+        }
+
+        boolean matches(CharSequence value, int start, int end) {
+            if (matchesAll || prefixes.matchesFromStart(value, start, end, ignoreCase)
+                    || suffixes.matchesFromEnd(value, start, end, ignoreCase)) {
+                return true;
+            }
+            for (String[] parts : otherParts) {
+                if (matchesParts(parts, value, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The parts are what is between the `*` wildcards. The first part
+         * has to be at the start, the last at the end, and the others are
+         * found in order in between, each as early as possible
+         */
+        private boolean matchesParts(String[] parts, CharSequence value, int start, int end) {
+            String first = parts[0];
+            String last = parts[parts.length - 1];
+            if (end - start < first.length() + last.length()
+                    || !regionMatches(value, start, first)
+                    || !regionMatches(value, end - last.length(), last)) {
+                return false;
+            }
+            int from = start + first.length();
+            int to = end - last.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                from = indexOf(value, from, to, parts[i]);
+                if (from < 0) {
+                    return false;
+                }
+                from += parts[i].length();
+            }
+            return true;
+        }
+
+        private int indexOf(CharSequence value, int from, int to, String part) {
+            for (int i = from; i <= to - part.length(); i++) {
+                if (regionMatches(value, i, part)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionMatches(CharSequence value, int offset, String part) {
+            for (int i = 0; i < part.length(); i++) {
+                if (charAt(value, offset + i, ignoreCase) != part.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A trie node, with the children held in arrays sorted by their character
+     */
+    private static final class TrieNode {
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        // a pattern ends at this node
+        private boolean exact;
+        // a pattern ends at this node followed by `*`
+        private boolean wildcard;
+
+        TrieNode insert(String key, boolean reversed) {
+            TrieNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(reversed ? key.length() - 1 - i : i);
+                int index = Arrays.binarySearch(node.keys, c);
+                if (index < 0) {
+                    index = -index - 1;
+                    node.keys = insertAt(node.keys, index, c);
+                    node.children = insertAt(node.children, index, new TrieNode());
+                }
+                node = node.children[index];
+            }
+            return node;
+        }
+
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        boolean matchesFromStart(CharSequence value, int start, int end, boolean ignoreCase) {
+            TrieNode node = this;
+            for (int i = start; i < end; i++) {
+                if (node.wildcard) {
+                    return true;
+                }
+                node = node.child(charAt(value, i, ignoreCase));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.exact || node.wildcard;
+        }
+
+        boolean matchesFromEnd(CharSequence value, int start, int end, boolean ignoreCase) {
+            TrieNode node = this;
+            for (int i = end - 1; i >= start; i--) {
+                if (node.wildcard) {
+                    return true;
+                }
+                node = node.child(charAt(value, i, ignoreCase));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.wildcard;
+        }
+
+        private static char[] insertAt(char[] array, int index, char c) {
+            char[] result = new char[array.length + 1];
+            System.arraycopy(array, 0, result, 0, index);
+            result[index] = c;
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            return result;
+        }
+
+        private static TrieNode[] insertAt(TrieNode[] array, int index, TrieNode node) {
+            TrieNode[] result = new TrieNode[array.length + 1];
+            System.arraycopy(array, 0, result, 0, index);
+            result[index] = node;
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            return result;
+        }
+    }
+}
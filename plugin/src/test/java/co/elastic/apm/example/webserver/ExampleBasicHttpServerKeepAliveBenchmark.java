@@ -0,0 +1,153 @@
+package co.elastic.apm.example.webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of {@link ExampleBasicHttpServer} throughput (requests per second)
+ * with 16 concurrent clients, each either sending all its requests on one kept-alive
+ * connection (`keepAlive` true) or opening a new connection per request and asking
+ * for it to be closed (`keepAlive` false). The server has a worker per client, so
+ * kept-alive connections don't wait for a worker. Runs without the agent, so this
+ * measures the server itself. Run the `main` method, eg from your IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+public class ExampleBasicHttpServerKeepAliveBenchmark {
+    private static final byte[] KeepAliveRequest = "GET /load HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CloseRequest = "GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private ExampleBasicHttpServer server;
+    private int port;
+
+    @State(Scope.Thread)
+    public static class Connection {
+        Socket socket;
+        InputStream input;
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        // the server logs every request, which would swamp the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ExampleBasicHttpServer(16, 1024);
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        server.blockUntilReady();
+        port = server.getLocalPort();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("GET /exit HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            readResponse(socket.getInputStream());
+        }
+        server.blockUntilStopped();
+    }
+
+    @Benchmark
+    public int request(Connection connection) throws IOException {
+        if (!keepAlive) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(CloseRequest);
+                return readResponse(socket.getInputStream());
+            }
+        }
+        if (connection.socket == null || connection.socket.isClosed()) {
+            connection.socket = new Socket("localhost", port);
+            connection.input = new BufferedInputStream(connection.socket.getInputStream());
+        }
+        connection.socket.getOutputStream().write(KeepAliveRequest);
+        int length = readResponse(connection.input);
+        if (length < 0) {
+            // the server closed the connection, after its maximum number of requests
+            connection.socket.close();
+        }
+        return length;
+    }
+
+    /**
+     * Reads the headers and then exactly Content-Length bytes of body
+     *
+     * @return the body length, or -1 if the server asked to close the connection
+     */
+    private static int readResponse(InputStream input) throws IOException {
+        int contentLength = 0;
+        boolean close = false;
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) >= 0) {
+            if (c == '\n') {
+                if (line.length() == 0) {
+                    break;
+                }
+                String header = line.toString();
+                if (header.startsWith("Content-Length:")) {
+                    contentLength = Integer.parseInt(header.substring("Content-Length:".length()).trim());
+                } else if (header.equals("Connection: close")) {
+                    close = true;
+                }
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (input.read() < 0) {
+                throw new IOException("connection closed mid-response");
+            }
+        }
+        return close ? -1 : contentLength;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ExampleBasicHttpServerKeepAliveBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
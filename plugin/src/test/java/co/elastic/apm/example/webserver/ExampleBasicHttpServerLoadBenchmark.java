@@ -0,0 +1,98 @@
+package co.elastic.apm.example.webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of {@link ExampleBasicHttpServer} throughput (requests per second)
+ * with 16 concurrent clients, handling connections on the accepting thread
+ * (`workerThreads` 0) and on worker pools of increasing size. Runs without the
+ * agent, so this measures the server itself. Run the `main` method, eg from your IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+public class ExampleBasicHttpServerLoadBenchmark {
+    private static final byte[] Request = "GET /load HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int workerThreads;
+
+    private ExampleBasicHttpServer server;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        // the server logs every request, which would swamp the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ExampleBasicHttpServer(workerThreads, 1024);
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        server.blockUntilReady();
+        port = server.getLocalPort();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        request("GET /exit HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        server.blockUntilStopped();
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        return request(Request);
+    }
+
+    private int request(byte[] request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(request);
+            socket.getOutputStream().flush();
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int total = 0;
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ExampleBasicHttpServerLoadBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
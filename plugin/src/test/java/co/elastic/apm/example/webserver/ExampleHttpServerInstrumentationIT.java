@@ -1,26 +1,46 @@
 package co.elastic.apm.example.webserver;
 
 import co.elastic.apm.example.webserver.plugin.ExampleHttpServerInstrumentation;
+import co.elastic.apm.mock.EventStore;
+import co.elastic.apm.mock.MockApmServer;
 import co.elastic.apm.plugin.AbstractInstrumentationTest;
 import com.fasterxml.jackson.databind.JsonNode;
 import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationTest {
 
@@ -30,7 +50,7 @@ public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationT
     protected static HttpClient Client = HttpClient.newHttpClient();
 
     @BeforeAll
-    public static void startServer() throws IOException {
+    public static void startServer() throws IOException, InterruptedException {
         Server = new ExampleBasicHttpServer();
         new Thread(() -> {
             try {
@@ -39,7 +59,7 @@ public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationT
                 START_EXCEPTION = e;
             }
         }).start();
-        assertTimeoutPreemptively(Duration.ofSeconds(3), () -> {Server.blockUntilReady();});
+        assertTrue(Server.blockUntilReady(3, TimeUnit.SECONDS));
         assertTrue(START_EXCEPTION == null);
         PORT = Server.getLocalPort();
     }
@@ -48,7 +68,7 @@ public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationT
     public static void stopServer() throws IOException, InterruptedException {
         assertEquals(executeRequest("exit"), 200);
         Server.stop();
-        assertTimeoutPreemptively(Duration.ofSeconds(8), () -> {Server.blockUntilStopped();});
+        assertTrue(Server.blockUntilStopped(8, TimeUnit.SECONDS));
     }
 
     @Test
@@ -58,13 +78,269 @@ public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationT
             assertEquals(200, executeRequest(request));
             JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 1000);
             assertEquals("GET /nothing", transaction.get("name").asText());
+            assertEquals(200, transaction.findValue("http.response.status_code").asInt());
+            assertEquals("success", transaction.get("outcome").asText());
+            assertTrue(transaction.findValue("http.response.body.size").asLong() > 0);
+            assertTrue(transaction.findValue("http.request.header.user-agent").asText().startsWith("Java-http-client"));
             assertEquals(0, ApmServer.getTransactionCount());
         }
     }
 
+    @Test
+    void testTraceparentFromTheClientIsContinued() throws IOException, InterruptedException, TimeoutException {
+        String traceId = "0af7651916cd43dd8448eb211c80319c";
+        String callerSpanId = "b7ad6b7169203331";
+        //the caller didn't sample this one, so neither does the server
+        assertEquals(200, ExampleClient.executeRequest(Client, PORT, "dropped", "00-" + traceId + "-" + callerSpanId + "-00"));
+        assertEquals(200, ExampleClient.executeRequest(Client, PORT, "traced", "00-" + traceId + "-" + callerSpanId + "-01"));
+        JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 5000);
+        assertEquals("GET /traced", transaction.get("name").asText());
+        assertEquals(traceId, transaction.get("trace_id").asText());
+        assertEquals(callerSpanId, transaction.get("parent_id").asText());
+        //the unsampled request reported nothing of the trace
+        assertEquals(List.of(transaction), ApmServer.getEvents().awaitTrace(traceId, 1, 1000));
+        assertEquals(0, ApmServer.getTransactionCount());
+    }
+
+    @Test
+    void testIntakeBytesAreCountedAsSentAndDecompressed() throws IOException, InterruptedException, TimeoutException {
+        MockApmServer.ByteCounts before = ApmServer.getIntakeBytes();
+        assertEquals(200, executeRequest("counted"));
+        assertEquals("GET /counted", ApmServer.getAndRemoveTransaction(0, 5000).get("name").asText());
+        //the events are counted as they are read, so by the time the transaction is here
+        MockApmServer.ByteCounts after = ApmServer.getIntakeBytes();
+        assertTrue(after.compressed() > before.compressed(), after.toString());
+        assertTrue(after.uncompressed() > before.uncompressed(), after.toString());
+        assertEquals(0, ApmServer.getTransactionCount());
+    }
+
+    @Test
+    void testConcurrentRequestsAreEachTracedOnce() throws Exception {
+        //64 threads all released at the same moment, so that the first use of the
+        //instruments and the tracer can happen concurrently
+        int threadCount = 64;
+        executeConcurrently(PORT, "concurrent?withsomething=true", threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 5000);
+            assertEquals("GET /concurrent", transaction.get("name").asText());
+        }
+        assertEquals(0, ApmServer.getTransactionCount());
+
+        //and each counted once. The OpenTelemetry counter reports the increments since
+        //the last report, which may have split the requests, so add the reports up
+        long pageViews = 0;
+        while (pageViews < threadCount) {
+            JsonNode metricset = ApmServer.getEvents().takeMetricset("page_views",
+                    m -> "GET /concurrent".equals(m.path("tags").path("route").asText())
+                            && m.path("samples").path("page_views").path("value").asLong() > 0, 5000);
+            pageViews += metricset.get("samples").get("page_views").get("value").asLong();
+        }
+        assertEquals(threadCount, pageViews);
+        //micrometer reports the count of its last 30 second step, so wait for the step with them all
+        ApmServer.getEvents().takeMetricset("page_counter",
+                m -> "GET /concurrent".equals(m.path("tags").path("route").asText())
+                        && m.path("samples").path("page_counter").path("value").asLong() == threadCount, 50000);
+    }
+
+    @Test
+    void testIgnoredRequestsAreNeitherTracedNorCounted() throws Exception {
+        //favicon.ico is in the default transaction_ignore_urls
+        assertEquals(200, executeRequest("favicon.ico"));
+        assertEquals(200, executeRequest("after_favicon"));
+        //transactions are reported in the order they end, so the ignored one would have been first
+        assertEquals("GET /after_favicon", ApmServer.getAndRemoveTransaction(0, 5000).get("name").asText());
+        assertEquals(0, ApmServer.getTransactionCount());
+
+        //once the counter of the later request is reported, the counter of the ignored
+        //one would have been too, as the registry reports all its counters each time
+        ApmServer.getEvents().takeMetricset("page_counter",
+                m -> "GET /after_favicon".equals(m.path("tags").path("route").asText()), 50000);
+        for (JsonNode metricset : ApmServer.getEvents().events(EventStore.METRICSET)) {
+            if (metricset.path("samples").has("page_counter")) {
+                assertNotEquals("GET /favicon.ico", metricset.path("tags").path("route").asText());
+            }
+        }
+    }
+
+    @Test
+    void testWorkerPoolRequestsAreEachTracedAsSeparateTransactions() throws Exception {
+        assertConcurrentRequestsAreSeparateTransactions(new ExampleBasicHttpServer(4, 64), "pooled", 32);
+    }
+
+    @Test
+    void testVirtualThreadRequestsAreEachTracedAsSeparateTransactions() throws Exception {
+        assumeTrue(VirtualThreads.isSupported(), "virtual threads need JDK 21+");
+        assertConcurrentRequestsAreSeparateTransactions(ExampleBasicHttpServer.withVirtualThreads(), "virtual", 32);
+    }
+
+    @Test
+    void testNioServerRequestsAreEachTracedAsSeparateTransactions() throws Exception {
+        assertConcurrentRequestsAreSeparateTransactions(new ExampleNioHttpServer(), "nio", 32);
+    }
+
+    @Test
+    void testJdkHttpServersSideBySideAreEachTraced() throws Exception {
+        ExampleAlreadyInstrumentedHttpServer fixed = ExampleAlreadyInstrumentedHttpServer.builder()
+                .executor(ExampleAlreadyInstrumentedHttpServer.ExecutorType.FIXED).threads(4).backlog(64).build();
+        ExampleAlreadyInstrumentedHttpServer workStealing = ExampleAlreadyInstrumentedHttpServer.builder()
+                .executor(ExampleAlreadyInstrumentedHttpServer.ExecutorType.WORK_STEALING).bindAddress("localhost").build();
+        fixed.start();
+        workStealing.start();
+        int fixedPort = fixed.boundPort().get(3, TimeUnit.SECONDS);
+        int workStealingPort = workStealing.boundPort().get(3, TimeUnit.SECONDS);
+        assertNotEquals(fixedPort, workStealingPort);
+        //served by the "/" context, so named from that rather than the URI
+        assertEquals(200, executeRequest(fixedPort, "some/where"));
+        assertEquals(200, executeRequest(workStealingPort, ""));
+        assertEquals(200, executeRequest(fixedPort, "exit"));
+        assertEquals(200, executeRequest(workStealingPort, "exit"));
+        assertTrue(fixed.blockUntilStopped(10, TimeUnit.SECONDS));
+        assertTrue(workStealing.blockUntilStopped(10, TimeUnit.SECONDS));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 5000);
+            names.add(transaction.get("name").asText());
+            assertEquals(200, transaction.findValue("http.response.status_code").asInt());
+            assertTrue(transaction.findValue("http.response.body.size").asLong() > 0);
+        }
+        names.sort(null);
+        assertEquals(List.of("GET /", "GET /", "GET /exit", "GET /exit"), names);
+        assertEquals(0, ApmServer.getTransactionCount());
+    }
+
+    @Test
+    void testAccessLogHasTheTraceIdOfTheActiveSpan() throws TimeoutException {
+        assertNull(AccessLog.currentTraceId());
+        Span span = GlobalOpenTelemetry.get().getTracer("ExampleHttpServer").spanBuilder("log-correlation").startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            assertEquals(span.getSpanContext().getTraceId(), AccessLog.currentTraceId());
+        } finally {
+            span.end();
+        }
+        assertNull(AccessLog.currentTraceId());
+        assertEquals("log-correlation", ApmServer.getAndRemoveTransaction(0, 5000).get("name").asText());
+    }
+
+    @Test
+    void testKeptAliveRequestsAreEachTracedAsSeparateTransactions() throws Exception {
+        ExampleBasicHttpServer server = new ExampleBasicHttpServer(2, 8);
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        assertTrue(server.blockUntilReady(3, TimeUnit.SECONDS));
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int i = 0; i < 3; i++) {
+                socket.getOutputStream().write("GET /keepalive HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                assertEquals("keep-alive", readResponseOnKeptAliveConnection(input));
+            }
+            socket.getOutputStream().write("GET /exit HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("close", readResponseOnKeptAliveConnection(input));
+        }
+        assertTrue(server.blockUntilStopped(15, TimeUnit.SECONDS));
+        //one connection, but every request on it is its own transaction
+        for (int i = 0; i < 3; i++) {
+            assertEquals("GET /keepalive", ApmServer.getAndRemoveTransaction(0, 5000).get("name").asText());
+        }
+        assertEquals("GET /exit", ApmServer.getAndRemoveTransaction(0, 5000).get("name").asText());
+        assertEquals(0, ApmServer.getTransactionCount());
+    }
+
+    /**
+     * Reads one response, using its Content-Length to find where it ends
+     *
+     * @return the value of the response `Connection` header
+     */
+    private static String readResponseOnKeptAliveConnection(DataInputStream input) throws IOException {
+        assertEquals("HTTP/1.1 200 OK", readLine(input));
+        int contentLength = -1;
+        String connection = null;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            if (line.startsWith("Content-Length:")) {
+                contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+            } else if (line.startsWith("Connection:")) {
+                connection = line.substring("Connection:".length()).trim();
+            }
+        }
+        assertTrue(contentLength > 0);
+        input.readFully(new byte[contentLength]);
+        return connection;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("connection closed mid-response");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void assertConcurrentRequestsAreSeparateTransactions(ExampleHttpServer server, String path, int threadCount) throws Exception {
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        assertTrue(server.blockUntilReady(3, TimeUnit.SECONDS));
+        try {
+            executeConcurrently(server.getLocalPort(), path, threadCount);
+        } finally {
+            assertEquals(200, executeRequest(server.getLocalPort(), "exit"));
+            assertTrue(server.blockUntilStopped(15, TimeUnit.SECONDS));
+        }
+        //spans handled on different threads must not leak into each other, so every
+        //request is its own root transaction, with its own trace
+        Set<String> traceIds = new HashSet<>();
+        for (int i = 0; i < threadCount + 1; i++) {
+            JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 5000);
+            String name = transaction.get("name").asText();
+            assertTrue(name.equals("GET /" + path) || name.equals("GET /exit"), name);
+            assertTrue(transaction.get("parent_id") == null || transaction.get("parent_id").isNull());
+            assertTrue(traceIds.add(transaction.get("trace_id").asText()));
+        }
+        assertEquals(0, ApmServer.getTransactionCount());
+    }
+
+    private static void executeConcurrently(int port, String req, int threadCount) throws Exception {
+        CountDownLatch startTogether = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Integer>> statuses = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                statuses.add(executor.submit(() -> {
+                    startTogether.await();
+                    return executeRequest(port, req);
+                }));
+            }
+            startTogether.countDown();
+            for (Future<Integer> status : statuses) {
+                assertEquals(200, status.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private static int executeRequest(String req) throws IOException, InterruptedException {
+        return executeRequest(PORT, req);
+    }
+
+    private static int executeRequest(int port, String req) throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:"+PORT+"/"+req))
+                .uri(URI.create("http://localhost:"+port+"/"+req))
                 .GET() // GET is default
                 .build();
 
@@ -90,23 +366,36 @@ public class ExampleHttpServerInstrumentationIT extends AbstractInstrumentationT
         JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 1000);
         assertEquals("GET /random_with_"+metricName, transaction.get("name").asText());
 
-        JsonNode metricset = ApmServer.popMetricset(5000);
-        boolean foundPageCountMetric = false;
-        boolean foundNonZeroPageCountMetric = false;
-        long start = System.currentTimeMillis();
-        for(long now = start; metricset != null && now-start < timeoutInMillis; now = System.currentTimeMillis()) {
-            if (metricset.get("samples") != null && metricset.get("samples").get(metricName) != null) {
-                foundPageCountMetric = true;
-                int pageCountValue = metricset.get("samples").get(metricName).get("value").intValue();
-                if (pageCountValue > 0) {
-                    foundNonZeroPageCountMetric = true;
-                    break;
-                }
-            }
-            metricset = ApmServer.popMetricset(5000);
+        //the metric is reported every second, so wait for a report with the page view counted
+        JsonNode metricset = ApmServer.getEvents().takeMetricset(metricName,
+                m -> m.get("samples").get(metricName).path("value").intValue() > 0, timeoutInMillis);
+        assertTrue(metricset.get("samples").get(metricName).get("value").intValue() > 0);
+    }
+
+    @Test
+    void testInstrumentationRecordsTheRequestDurationHistogram() throws IOException, InterruptedException, TimeoutException {
+        String route = "GET /random_with_request_duration";
+        assertEquals(200, executeRequest("random_with_request_duration?withsomething=true"));
+        JsonNode transaction = ApmServer.getAndRemoveTransaction(0, 1000);
+        assertEquals(route, transaction.get("name").asText());
+
+        //the histogram is tagged with the route, so look for the metricset with that tag
+        JsonNode metricset = ApmServer.getEvents().takeMetricset("request_duration",
+                m -> route.equals(m.path("tags").path("route").asText()), 5000);
+        JsonNode histogram = metricset.get("samples").get("request_duration");
+        assertNotNull(histogram);
+        //a histogram arrives as parallel arrays of bucket values and the count in each bucket
+        JsonNode values = histogram.get("values");
+        JsonNode counts = histogram.get("counts");
+        assertNotNull(values);
+        assertNotNull(counts);
+        assertTrue(values.size() > 0);
+        assertEquals(values.size(), counts.size());
+        long totalCount = 0;
+        for (JsonNode count : counts) {
+            totalCount += count.asLong();
         }
-        assertEquals(true, foundPageCountMetric);
-        assertEquals(true, foundNonZeroPageCountMetric);
+        assertEquals(1, totalCount);
     }
 
 }
@@ -0,0 +1,158 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.SuperMethodCall;
+import net.bytebuddy.jar.asm.AnnotationVisitor;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.ClassWriter;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.OpenedClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Compares the cost of the tracing and metrics advice of
+ * {@link ExampleHttpServerInstrumentation} on a tight `handleRequest` loop when
+ * it is called (`inline = false`, as the plugin has it) and when it is inlined.
+ *
+ * The agent only accepts `inline = false` advice from external plugins: the advice
+ * is loaded by the plugin's own class loader and called through invokedynamic, as the
+ * instrumented class can't see the plugin classes that inlined code would refer to.
+ * So the plugin can't ship inlined advice, and this weaves the same advice class
+ * both ways with Byte Buddy directly, into subclasses loaded alongside this class,
+ * which shows how much inlining would be worth.
+ *
+ * The OpenTelemetry SDK (with no exporter) is registered globally to stand in
+ * for the agent's OpenTelemetry bridge. Run the `main` method, eg from your IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdviceInliningBenchmark {
+    private static final String REQUEST_LINE = "GET /nothing?x=y HTTP/1.1";
+    private static final List<String> HEADER_LINES = Collections.singletonList("User-Agent: jmh");
+
+    /**
+     * none: no advice; called: the plugin's advice as it is; inlined: the same advice, inlined
+     */
+    @Param({"none", "called", "inlined"})
+    public String advice;
+
+    private Server server;
+
+    @Setup
+    public void weaveServer() throws Exception {
+        GlobalOpenTelemetry.resetForTest();
+        GlobalOpenTelemetry.set(OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder().build())
+                .build());
+        Implementation implementation;
+        switch (advice) {
+            case "called":
+                implementation = Advice.to(ExampleHttpServerInstrumentation.AdviceClass.class);
+                break;
+            case "inlined":
+                implementation = inlined(ExampleHttpServerInstrumentation.AdviceClass.class);
+                break;
+            default:
+                implementation = SuperMethodCall.INSTANCE;
+        }
+        // the subclass is defined in this package, so the inlined advice can use the package-private
+        // RequestState and AdviceClass.shouldIgnoreThisRequest
+        server = new ByteBuddy()
+                .subclass(Server.class)
+                .method(named("handleRequest"))
+                .intercept(implementation)
+                .make()
+                .load(Server.class.getClassLoader(), ClassLoadingStrategy.UsingLookup.of(MethodHandles.lookup()))
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+    }
+
+    @Benchmark
+    public int handleRequest() {
+        server.handleRequest(REQUEST_LINE, HEADER_LINES, null);
+        return server.handled;
+    }
+
+    public static class Server {
+        int handled;
+
+        public int handleRequest(String request, List<String> headerLines, Object response) {
+            handled++;
+            return 200;
+        }
+    }
+
+    /**
+     * Byte Buddy takes `inline` from the advice annotations, so this describes the
+     * advice class from its class file with the `inline = false` values dropped, ie
+     * back to the default of inlining. Byte Buddy then copies the advice methods'
+     * own bytecode into the instrumented method, so what is inlined is exactly the
+     * plugin's advice, not a copy of its source that could drift from it
+     */
+    private static Advice inlined(Class<?> adviceClass) throws IOException {
+        ClassFileLocator classFiles = ClassFileLocator.ForClassLoader.of(adviceClass.getClassLoader());
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classFiles.locate(adviceClass.getName()).resolve()).accept(new ClassVisitor(OpenedClassReader.ASM_API, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(OpenedClassReader.ASM_API, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDescriptor, boolean visible) {
+                        return new AnnotationVisitor(OpenedClassReader.ASM_API, super.visitAnnotation(annotationDescriptor, visible)) {
+                            @Override
+                            public void visit(String name, Object value) {
+                                if (!name.equals("inline")) {
+                                    super.visit(name, value);
+                                }
+                            }
+                        };
+                    }
+                };
+            }
+        }, 0);
+        ClassFileLocator inlining = new ClassFileLocator.Compound(
+                ClassFileLocator.Simple.of(adviceClass.getName(), writer.toByteArray()), classFiles);
+        return Advice.to(TypePool.Default.of(inlining).describe(adviceClass.getName()).resolve(), inlining);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AdviceInliningBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,52 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import co.elastic.apm.example.webserver.ExampleAlreadyInstrumentedHttpServer;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the class name pre-filter, which has to turn down classes outside
+ * the handlers' package before their hierarchy is walked.
+ */
+public class ExampleHttpHandlerInstrumentationTest {
+    private static final String PREFIX_PROPERTY = "elastic.apm.example_http_handler_prefix";
+
+    @AfterEach
+    void clearPrefix() {
+        System.clearProperty(PREFIX_PROPERTY);
+    }
+
+    @Test
+    void testDefaultPreFilterRejectsUnrelatedClasses() {
+        ElementMatcher<? super NamedElement> preFilter = new ExampleHttpHandlerInstrumentation().getTypeMatcherPreFilter();
+        assertFalse(preFilter.matches(TypeDescription.ForLoadedType.of(String.class)));
+        assertFalse(preFilter.matches(named("com.mycompany.web.OrdersHandler")));
+        assertTrue(preFilter.matches(TypeDescription.ForLoadedType.of(ExampleAlreadyInstrumentedHttpServer.class)));
+    }
+
+    @Test
+    void testConfiguredPrefixReplacesTheDefault() {
+        System.setProperty(PREFIX_PROPERTY, "com.mycompany.");
+        ElementMatcher<? super NamedElement> preFilter = new ExampleHttpHandlerInstrumentation().getTypeMatcherPreFilter();
+        assertTrue(preFilter.matches(named("com.mycompany.web.OrdersHandler")));
+        assertFalse(preFilter.matches(TypeDescription.ForLoadedType.of(ExampleAlreadyInstrumentedHttpServer.class)));
+    }
+
+    @Test
+    void testEmptyPrefixIsNotSet() {
+        assertEquals(ExampleHttpHandlerInstrumentation.DEFAULT_HANDLER_PREFIX, ExampleHttpHandlerInstrumentation.handlerPrefix(""));
+        assertEquals(ExampleHttpHandlerInstrumentation.DEFAULT_HANDLER_PREFIX, ExampleHttpHandlerInstrumentation.handlerPrefix("  "));
+        assertEquals("com.mycompany.", ExampleHttpHandlerInstrumentation.handlerPrefix("com.mycompany."));
+    }
+
+    private static NamedElement named(String name) {
+        return () -> name;
+    }
+}
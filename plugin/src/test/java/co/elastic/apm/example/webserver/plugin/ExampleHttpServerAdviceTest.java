@@ -0,0 +1,214 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import co.elastic.apm.example.webserver.plugin.ExampleHttpServerInstrumentation.AdviceClass;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Calls the advice of {@link ExampleHttpServerInstrumentation} directly, the way the
+ * instrumented `handleRequest` would, with the OpenTelemetry SDK standing in for the
+ * agent's bridge, to check that each exit ends the span its own entry started.
+ */
+public class ExampleHttpServerAdviceTest {
+    private static final InMemorySpanExporter Exporter = InMemorySpanExporter.create();
+
+    @BeforeAll
+    public static void registerSdk() {
+        GlobalOpenTelemetry.resetForTest();
+        GlobalOpenTelemetry.set(OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder()
+                        .addSpanProcessor(SimpleSpanProcessor.create(Exporter))
+                        .build())
+                .build());
+    }
+
+    @AfterAll
+    public static void resetSdk() {
+        GlobalOpenTelemetry.resetForTest();
+    }
+
+    @BeforeEach
+    public void clearSpans() {
+        Exporter.reset();
+    }
+
+    @Test
+    void testNestedRequestsEndTheirOwnSpans() {
+        Object outer = enter("GET /outer HTTP/1.1");
+        Object inner = enter("GET /inner HTTP/1.1");
+        AdviceClass.onExitHandle(404, null, null, inner);
+        AdviceClass.onExitHandle(200, null, null, outer);
+        assertFalse(Span.current().getSpanContext().isValid());
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        SpanData innerSpan = spans.get(0);
+        SpanData outerSpan = spans.get(1);
+        assertEquals("GET /inner", innerSpan.getName());
+        assertEquals(404L, innerSpan.getAttributes().get(HttpAttributes.RESPONSE_STATUS_CODE));
+        assertEquals("GET /outer", outerSpan.getName());
+        assertEquals(200L, outerSpan.getAttributes().get(HttpAttributes.RESPONSE_STATUS_CODE));
+        assertEquals(outerSpan.getSpanId(), innerSpan.getParentSpanId());
+        assertEquals(StatusCode.OK, outerSpan.getStatus().getStatusCode());
+    }
+
+    @Test
+    void testExitEndsItsSpanEvenIfAnotherContextWasLeftCurrent() throws Exception {
+        Span leaked = TelemetryHolder.tracer().spanBuilder("leaked").startSpan();
+        // on its own thread, as the leaked context is left current
+        Thread thread = new Thread(() -> {
+            Object state = enter("GET /leaky HTTP/1.1");
+            leaked.makeCurrent(); // and never closed
+            AdviceClass.onExitHandle(200, null, null, state);
+        });
+        thread.start();
+        thread.join(10_000);
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        assertEquals("GET /leaky", spans.get(0).getName());
+        assertTrue(leaked.isRecording());
+        leaked.end();
+    }
+
+    @Test
+    void testServerErrorsAndExceptionsAreFailures() {
+        AdviceClass.onExitHandle(503, null, null, enter("GET /unavailable HTTP/1.1"));
+        AdviceClass.onExitHandle(0, null, new IllegalStateException("boom"), enter("GET /thrown HTTP/1.1"));
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        assertEquals(StatusCode.ERROR, spans.get(0).getStatus().getStatusCode());
+        assertEquals(503L, spans.get(0).getAttributes().get(HttpAttributes.RESPONSE_STATUS_CODE));
+        assertEquals(StatusCode.ERROR, spans.get(1).getStatus().getStatusCode());
+        assertNull(spans.get(1).getAttributes().get(HttpAttributes.RESPONSE_STATUS_CODE));
+        assertEquals(1, spans.get(1).getEvents().size()); // the recorded exception
+    }
+
+    @Test
+    void testAllowedHeadersAndBodySizeAreRecorded() {
+        List<String> headerLines = Arrays.asList("user-agent: curl/8.0.1", "Host: localhost:8080",
+                "Accept: */*", "Content-Length: 0", "Hostile: not captured");
+        Object state = AdviceClass.onEnterHandle("GET /headers HTTP/1.1", headerLines);
+        LongSupplier bodyBytes = () -> 87L;
+        AdviceClass.onExitHandle(200, bodyBytes, null, state);
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        SpanData span = spans.get(0);
+        assertEquals("curl/8.0.1", span.getAttributes().get(AttributeKey.stringKey("http.request.header.user-agent")));
+        assertEquals("localhost:8080", span.getAttributes().get(AttributeKey.stringKey("http.request.header.host")));
+        assertEquals("0", span.getAttributes().get(AttributeKey.stringKey("http.request.header.content-length")));
+        assertNull(span.getAttributes().get(AttributeKey.stringKey("http.request.header.accept")));
+        assertNull(span.getAttributes().get(AttributeKey.stringKey("http.request.header.hostile")));
+        assertEquals(87L, span.getAttributes().get(HttpAttributes.RESPONSE_BODY_SIZE));
+    }
+
+    @Test
+    void testTraceparentMakesTheCallerTheParent() {
+        String traceId = "0af7651916cd43dd8448eb211c80319c";
+        String callerSpanId = "b7ad6b7169203331";
+        Object state = AdviceClass.onEnterHandle("GET /traced HTTP/1.1", Arrays.asList(
+                "Host: localhost", "TraceParent: 00-" + traceId + "-" + callerSpanId + "-01", "tracestate: vendor=x"));
+        assertTrue(state instanceof RequestState);
+        AdviceClass.onExitHandle(200, null, null, state);
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        assertEquals(traceId, spans.get(0).getTraceId());
+        assertEquals(callerSpanId, spans.get(0).getParentSpanId());
+        assertTrue(spans.get(0).getParentSpanContext().isRemote());
+        assertEquals("x", spans.get(0).getParentSpanContext().getTraceState().get("vendor"));
+    }
+
+    @Test
+    void testTraceparentNotSampledByTheCallerIsNotTraced() {
+        Object state = AdviceClass.onEnterHandle("GET /dropped HTTP/1.1", Collections.singletonList(
+                "traceparent: 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-00"));
+        // still returned, as the request is counted and timed
+        assertTrue(state instanceof RequestState);
+        assertNull(((RequestState) state).span);
+        AdviceClass.onExitHandle(200, null, null, state);
+        assertEquals(0, Exporter.getFinishedSpanItems().size());
+    }
+
+    @Test
+    void testInvalidTraceparentStartsANewTrace() {
+        AdviceClass.onExitHandle(200, null, null, AdviceClass.onEnterHandle("GET /invalid HTTP/1.1",
+                Collections.singletonList("traceparent: 00-00000000000000000000000000000000-b7ad6b7169203331-01")));
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        assertFalse(spans.get(0).getParentSpanContext().isValid());
+    }
+
+    @Test
+    void testConcurrentRequestsEndTheirOwnSpans() throws Exception {
+        int threadCount = 8;
+        int requestsPerThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch startTogether = new CountDownLatch(1);
+        Future<?>[] results = new Future<?>[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                // each thread's requests get their own path and status code, so a span ended
+                // with another thread's status code would have a mismatched name and attribute
+                String requestLine = "GET /thread" + i + " HTTP/1.1";
+                int statusCode = 200 + i;
+                results[i] = executor.submit(() -> {
+                    startTogether.await();
+                    for (int j = 0; j < requestsPerThread; j++) {
+                        AdviceClass.onExitHandle(statusCode, null, null, enter(requestLine));
+                    }
+                    return null;
+                });
+            }
+            startTogether.countDown();
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<SpanData> spans = Exporter.getFinishedSpanItems();
+        assertEquals(threadCount * requestsPerThread, spans.size());
+        for (SpanData span : spans) {
+            long statusCode = span.getAttributes().get(HttpAttributes.RESPONSE_STATUS_CODE);
+            assertEquals("GET /thread" + (statusCode - 200), span.getName());
+            assertFalse(span.getParentSpanContext().isValid(), span.getName());
+        }
+    }
+
+    private static Object enter(String requestLine) {
+        Object state = AdviceClass.onEnterHandle(requestLine, Collections.emptyList());
+        assertTrue(state instanceof RequestState, requestLine);
+        return state;
+    }
+}
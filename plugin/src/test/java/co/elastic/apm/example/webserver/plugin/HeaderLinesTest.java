@@ -0,0 +1,40 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class HeaderLinesTest {
+    private static final List<?> LINES = Arrays.asList("Host: localhost:8080", 42,
+            "user-agent: \tcurl/8.0.1 ", "X-Empty:", "User-Agent: second");
+
+    @Test
+    void testNamesAreMatchedIgnoringCase() {
+        assertEquals(2, HeaderLines.indexOf(LINES, "User-Agent"));
+        assertEquals("curl/8.0.1", HeaderLines.value(LINES, "USER-AGENT"));
+        // only the first line of a repeated header
+        assertEquals("curl/8.0.1", HeaderLines.value(LINES, "user-agent"));
+    }
+
+    @Test
+    void testValuesAreTrimmed() {
+        assertEquals("localhost:8080", HeaderLines.value(LINES, "Host"));
+        assertEquals("", HeaderLines.value(LINES, "X-Empty"));
+        String header = "User-Agent:  curl  ";
+        int start = HeaderLines.valueStart(header, "User-Agent");
+        assertEquals("curl", header.substring(start, HeaderLines.valueEnd(header, start)));
+    }
+
+    @Test
+    void testOnlyTheWholeNameMatches() {
+        assertEquals(-1, HeaderLines.indexOf(LINES, "User"));
+        assertEquals(-1, HeaderLines.indexOf(LINES, "Hos"));
+        assertNull(HeaderLines.value(Collections.singletonList("User-Agent-Bot: x"), "User-Agent"));
+        assertNull(HeaderLines.value(Collections.emptyList(), "Host"));
+    }
+}
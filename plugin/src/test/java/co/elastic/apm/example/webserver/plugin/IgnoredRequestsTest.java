@@ -0,0 +1,54 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IgnoredRequestsTest {
+
+    @Test
+    void testDefaultUrlPatterns() {
+        assertTrue(IgnoredRequests.shouldIgnore("GET /favicon.ico", null));
+        assertTrue(IgnoredRequests.shouldIgnore("GET /static/app.js", null));
+        assertTrue(IgnoredRequests.shouldIgnore("GET /heartbeat", null));
+        assertFalse(IgnoredRequests.shouldIgnore("GET /favicon", null));
+        assertTrue(IgnoredRequests.shouldIgnoreUrlPath("/favicon.ico", null));
+        assertFalse(IgnoredRequests.shouldIgnoreUrlPath("/", "curl/8.0.1"));
+    }
+
+    @Test
+    void testUserAgentValueIsTrimmed() {
+        // exact, so it only matches once the spaces on both sides are gone
+        WildcardMatcherSet curl = WildcardMatcherSet.compile("curl/8.0.1");
+        assertTrue(IgnoredRequests.isIgnoredUserAgent(curl,
+                Collections.singletonList("User-Agent:   curl/8.0.1 \t")));
+        assertTrue(IgnoredRequests.isIgnoredUserAgent(curl,
+                Collections.singletonList("User-Agent:curl/8.0.1")));
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(curl,
+                Collections.singletonList("User-Agent: curl/8.0.10")));
+    }
+
+    @Test
+    void testUserAgentHeaderIsFoundAmongTheOthers() {
+        WildcardMatcherSet bots = WildcardMatcherSet.compile("*bot*");
+        assertTrue(IgnoredRequests.isIgnoredUserAgent(bots,
+                Arrays.asList("Host: localhost", "user-agent: Googlebot/2.1", "Accept: */*")));
+        // only the value of the User-Agent header is matched
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(bots,
+                Arrays.asList("Host: bot.example.com", "User-Agent: curl/8.0.1")));
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(bots,
+                Collections.singletonList("User-Agent-Bot: x")));
+    }
+
+    @Test
+    void testNoHeaders() {
+        WildcardMatcherSet all = WildcardMatcherSet.compile("*");
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(all, Collections.emptyList()));
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(all, null));
+        assertFalse(IgnoredRequests.isIgnoredUserAgent(all, "User-Agent: curl/8.0.1"));
+    }
+}
@@ -0,0 +1,73 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares naming the span with the original substring based parsing
+ * against the single pass {@link RequestLineParser}.
+ *
+ * Run the `main` method (eg from your IDE, with the test classpath), which
+ * enables the GC profiler - equivalent to running JMH with `-prof gc`.
+ * The `gc.alloc.rate.norm` line of the results is the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLineParserBenchmark {
+
+    private final String[] requestLines = {
+            "GET /nothing HTTP/1.1",
+            "GET /nothing?withsomething=true HTTP/1.1",
+            "GET /nothing#somelink HTTP/1.1",
+            "GET /nothing#somelink?withsomething=true HTTP/1.1",
+    };
+    private int next;
+
+    private String nextRequestLine() {
+        return requestLines[next++ & 3];
+    }
+
+    @Benchmark
+    public String substringParsing() {
+        String requestLine = nextRequestLine();
+        String request = requestLine.substring(0, requestLine.indexOf(" HTTP"));
+        int index = request.indexOf("?");
+        if (index > 0) {
+            request = request.substring(0, index);
+        }
+        index = request.indexOf("#");
+        if (index > 0) {
+            request = request.substring(0, index);
+        }
+        return request;
+    }
+
+    @Benchmark
+    public String singlePassParsing() {
+        return RequestLineParser.spanName(nextRequestLine());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RequestLineParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
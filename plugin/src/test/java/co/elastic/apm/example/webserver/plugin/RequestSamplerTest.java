@@ -0,0 +1,125 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the sampling options with their own {@link RequestSampler}s, passing
+ * the time explicitly so the token buckets refill exactly when the test says.
+ * The buckets start full when they are created, so the times used here are
+ * taken from well after that.
+ */
+public class RequestSamplerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void testBurstUpToTheRateIsSampledThenRefused() {
+        RequestSampler sampler = new RequestSampler(1.0, 5);
+        long now = System.nanoTime() + SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sampler.isSampled("GET /burst", now), "request " + i);
+        }
+        assertFalse(sampler.isSampled("GET /burst", now));
+        // each route has its own bucket
+        assertTrue(sampler.isSampled("GET /other", now));
+    }
+
+    @Test
+    void testBucketRefillsOverTheInterval() {
+        RequestSampler sampler = new RequestSampler(1.0, 5);
+        long now = System.nanoTime() + SECOND;
+        for (int i = 0; i < 5; i++) {
+            sampler.isSampled("GET /refill", now);
+        }
+        assertFalse(sampler.isSampled("GET /refill", now));
+        // one token is back after a fifth of a second
+        now += SECOND / 5;
+        assertTrue(sampler.isSampled("GET /refill", now));
+        assertFalse(sampler.isSampled("GET /refill", now));
+        // and all of them after a second, but no more than that
+        now += 10 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sampler.isSampled("GET /refill", now), "request " + i);
+        }
+        assertFalse(sampler.isSampled("GET /refill", now));
+    }
+
+    @Test
+    void testZeroTransactionsPerSecondMeansUnlimited() {
+        RequestSampler sampler = new RequestSampler(1.0, 0);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(sampler.isSampled("GET /unlimited", now));
+        }
+    }
+
+    @Test
+    void testRoutesBeyondTheCacheLimitShareOneBucket() {
+        RequestSampler sampler = new RequestSampler(1.0, 1);
+        long now = System.nanoTime() + SECOND;
+        for (int i = 0; i < RouteCache.MAX_ROUTES; i++) {
+            assertTrue(sampler.isSampled("GET /route" + i, now), "route " + i);
+        }
+        assertTrue(sampler.isSampled("GET /overflow1", now));
+        assertFalse(sampler.isSampled("GET /overflow2", now));
+        // the cached routes keep their own buckets
+        assertFalse(sampler.isSampled("GET /route0", now));
+        assertTrue(sampler.isSampled("GET /route0", now + SECOND));
+    }
+
+    @Test
+    void testSampleRateZeroSamplesNothing() {
+        RequestSampler sampler = new RequestSampler(0.0, 0);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            assertFalse(sampler.isSampled("GET /never", now));
+        }
+    }
+
+    @Test
+    void testSampleRateOneSamplesEverything() {
+        // with a limit too, so the probability check is all that decides below it
+        RequestSampler sampler = new RequestSampler(1.0, 10_000);
+        long now = System.nanoTime() + SECOND;
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(sampler.isSampled("GET /always", now), "request " + i);
+        }
+    }
+
+    @Test
+    void testSampleRateIsTheProbabilityOfSampling() {
+        RequestSampler sampler = new RequestSampler(0.5, 0);
+        long now = System.nanoTime();
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (sampler.isSampled("GET /half", now)) {
+                sampled++;
+            }
+        }
+        // 20 standard deviations either side, so this doesn't fail by chance
+        assertTrue(sampled > 4_000 && sampled < 6_000, "sampled " + sampled);
+    }
+
+    @Test
+    void testMalformedOptionsFallBackToTheDefaults() {
+        assertEquals(1.0, RequestSampler.sampleRate("all"));
+        assertEquals(1.0, RequestSampler.sampleRate(""));
+        assertEquals(1.0, RequestSampler.sampleRate("NaN"));
+        assertEquals(0, RequestSampler.maxTransactionsPerSecond("10/s"));
+        assertEquals(0, RequestSampler.maxTransactionsPerSecond("99999999999"));
+        assertEquals(0.25, RequestSampler.sampleRate(" 0.25 "));
+        assertEquals(10, RequestSampler.maxTransactionsPerSecond("10"));
+    }
+
+    @Test
+    void testOutOfRangeOptionsAreClamped() {
+        assertEquals(1.0, RequestSampler.sampleRate("1.5"));
+        assertEquals(0.0, RequestSampler.sampleRate("-0.5"));
+        assertEquals(0, RequestSampler.maxTransactionsPerSecond("-3"));
+    }
+}
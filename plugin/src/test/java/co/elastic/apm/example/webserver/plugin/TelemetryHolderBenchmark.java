@@ -0,0 +1,108 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-request overhead of looking up the Tracer through
+ * `GlobalOpenTelemetry.get()` on every request against using the
+ * Tracer bound in {@link TelemetryHolder}, and the instrument bound in
+ * {@link InstrumentRegistry} against reading it from a volatile field.
+ * `globalMeterLookup` is what each request pays to retry the lookup while
+ * the bridge isn't installed yet.
+ *
+ * The OpenTelemetry SDK (with no exporter) is registered globally to stand in
+ * for the agent's OpenTelemetry bridge, as the no-op implementation would never
+ * be cached by the holder. Run the `main` method, eg from your IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryHolderBenchmark {
+    // the instrument published as the registry did before binding it into a call site
+    private static volatile LongCounter volatilePageViews;
+
+    @Setup
+    public void registerSdk() {
+        GlobalOpenTelemetry.set(OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder().build())
+                // without a reader the SDK hands out the no-op Meter, and the instruments wouldn't be bound
+                .setMeterProvider(SdkMeterProvider.builder().registerMetricReader(InMemoryMetricReader.create()).build())
+                .build());
+        volatilePageViews = InstrumentRegistry.pageViews();
+    }
+
+    @Benchmark
+    public Tracer globalTracerLookup() {
+        return GlobalOpenTelemetry.get().getTracer(TelemetryHolder.INSTRUMENTATION_NAME);
+    }
+
+    @Benchmark
+    public Tracer cachedTracer() {
+        return TelemetryHolder.tracer();
+    }
+
+    @Benchmark
+    public Meter globalMeterLookup() {
+        return GlobalOpenTelemetry.getMeter(TelemetryHolder.INSTRUMENTATION_NAME);
+    }
+
+    @Benchmark
+    public LongCounter volatilePageViews() {
+        LongCounter pageViews = volatilePageViews;
+        return pageViews != null ? pageViews : InstrumentRegistry.pageViews();
+    }
+
+    @Benchmark
+    public LongCounter boundPageViews() {
+        return InstrumentRegistry.pageViews();
+    }
+
+    @Benchmark
+    public void globalTracerLookupPerRequest() {
+        Tracer tracer = GlobalOpenTelemetry.get().getTracer(TelemetryHolder.INSTRUMENTATION_NAME);
+        startAndEndSpan(tracer);
+    }
+
+    @Benchmark
+    public void cachedTracerPerRequest() {
+        startAndEndSpan(TelemetryHolder.tracer());
+    }
+
+    private static void startAndEndSpan(Tracer tracer) {
+        Span span = tracer.spanBuilder("GET /nothing").setSpanKind(SpanKind.SERVER).startSpan();
+        span.end();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TelemetryHolderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
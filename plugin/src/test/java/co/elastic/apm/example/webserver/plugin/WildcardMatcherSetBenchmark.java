@@ -0,0 +1,74 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of testing a request path against 1, 10 and 1000 ignore patterns,
+ * which are a mix of exact (`/health3`), prefix (`/static1/*`) and suffix
+ * (`*.ext2`) patterns. Run the `main` method, eg from your IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WildcardMatcherSetBenchmark {
+
+    @Param({"1", "10", "1000"})
+    public int patternCount;
+
+    private WildcardMatcherSet matcher;
+    private final String tracedRequest = "GET /nothing/much.html";
+    private String ignoredRequest;
+
+    @Setup
+    public void compilePatterns() {
+        StringBuilder patterns = new StringBuilder();
+        for (int i = 0; i < patternCount; i++) {
+            switch (i % 3) {
+                case 0:
+                    patterns.append("/static").append(i).append("/*,");
+                    break;
+                case 1:
+                    patterns.append("*.ext").append(i).append(',');
+                    break;
+                default:
+                    patterns.append("/health").append(i).append(',');
+            }
+        }
+        matcher = WildcardMatcherSet.compile(patterns.toString());
+        ignoredRequest = "GET /static" + (patternCount - 1) / 3 * 3 + "/app.js";
+    }
+
+    @Benchmark
+    public boolean tracedRequest() {
+        return matcher.matches(tracedRequest, 4, tracedRequest.length());
+    }
+
+    @Benchmark
+    public boolean ignoredRequest() {
+        return matcher.matches(ignoredRequest, 4, ignoredRequest.length());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WildcardMatcherSetBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,119 @@
+package co.elastic.apm.example.webserver.plugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WildcardMatcherSetTest {
+
+    @Test
+    void testExactPatternMatchesOnlyTheWholeValue() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("/favicon.ico");
+        assertTrue(matches(matcher, "/favicon.ico"));
+        assertTrue(matches(matcher, "/FAVICON.ico"));
+        assertFalse(matches(matcher, "/favicon.icon"));
+        assertFalse(matches(matcher, "/favicon.ic"));
+        assertFalse(matches(matcher, "/static/favicon.ico"));
+    }
+
+    @Test
+    void testCaseInsensitiveMatchingIgnoresTheDefaultLocale() {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            // in Turkish, the lower case of "I" is a dotless i, not "i"
+            Locale.setDefault(new Locale("tr", "TR"));
+            WildcardMatcherSet matcher = WildcardMatcherSet.compile("/INDEX*");
+            assertTrue(matches(matcher, "/index.html"));
+            assertTrue(matches(matcher, "/Index.html"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void testPrefixPatternMatchesAnythingAfterThePrefix() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("/heartbeat*");
+        assertTrue(matches(matcher, "/heartbeat"));
+        assertTrue(matches(matcher, "/heartbeat/ping"));
+        assertTrue(matches(matcher, "/HeartBeat2"));
+        assertFalse(matches(matcher, "/heart"));
+        assertFalse(matches(matcher, "/api/heartbeat"));
+    }
+
+    @Test
+    void testSuffixPatternMatchesAnythingBeforeTheSuffix() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("*.js");
+        assertTrue(matches(matcher, "/app.js"));
+        assertTrue(matches(matcher, ".js"));
+        assertTrue(matches(matcher, "/static/APP.JS"));
+        assertFalse(matches(matcher, "/app.json"));
+        assertFalse(matches(matcher, "/appjs"));
+    }
+
+    @Test
+    void testInfixPatternsMatchThePartsInOrder() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("*admin*, /a*b*c");
+        assertTrue(matches(matcher, "admin"));
+        assertTrue(matches(matcher, "/site/Admin/users"));
+        assertFalse(matches(matcher, "/adm/in"));
+        assertTrue(matches(matcher, "/abc"));
+        assertTrue(matches(matcher, "/a/x/b/y/c"));
+        assertFalse(matches(matcher, "/a/c/b"));
+        assertFalse(matches(matcher, "/abcd"));
+        // the first and last parts can't overlap
+        assertFalse(matches(WildcardMatcherSet.compile("/ab*ba"), "/aba"));
+    }
+
+    @Test
+    void testStarMatchesEverything() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("*");
+        assertTrue(matches(matcher, ""));
+        assertTrue(matches(matcher, "/anything"));
+    }
+
+    @Test
+    void testCaseSensitivePatterns() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("(?-i)/Exact, (?-i)/Prefix*, (?-i)*.JS, /insensitive");
+        assertTrue(matches(matcher, "/Exact"));
+        assertFalse(matches(matcher, "/exact"));
+        assertTrue(matches(matcher, "/Prefix/x"));
+        assertFalse(matches(matcher, "/prefix/x"));
+        assertTrue(matches(matcher, "/app.JS"));
+        assertFalse(matches(matcher, "/app.js"));
+        // the other patterns stay case insensitive
+        assertTrue(matches(matcher, "/INSENSITIVE"));
+    }
+
+    @Test
+    void testPatternsSharingAPrefix() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("/a, /abc*");
+        assertTrue(matches(matcher, "/a"));
+        assertFalse(matches(matcher, "/ab"));
+        assertTrue(matches(matcher, "/abc"));
+        assertTrue(matches(matcher, "/abcd"));
+    }
+
+    @Test
+    void testOnlyTheRangeIsMatched() {
+        WildcardMatcherSet matcher = WildcardMatcherSet.compile("/favicon.ico");
+        String spanName = "GET /favicon.ico";
+        assertTrue(matcher.matches(spanName, 4, spanName.length()));
+        assertFalse(matcher.matches(spanName, 0, spanName.length()));
+        assertFalse(matcher.matches(spanName, 4, spanName.length() - 1));
+    }
+
+    @Test
+    void testBlankPatternsAreEmpty() {
+        assertTrue(WildcardMatcherSet.compile("").isEmpty());
+        assertTrue(WildcardMatcherSet.compile(" , ,").isEmpty());
+        assertFalse(matches(WildcardMatcherSet.compile(""), ""));
+        assertFalse(WildcardMatcherSet.compile("/x").isEmpty());
+    }
+
+    private static boolean matches(WildcardMatcherSet matcher, String value) {
+        return matcher.matches(value, 0, value.length());
+    }
+}
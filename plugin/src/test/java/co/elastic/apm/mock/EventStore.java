@@ -0,0 +1,247 @@
+package co.elastic.apm.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The events received by a {@link MockApmServer}, indexed as they arrive by
+ * their type, and transactions by their name, metricsets by the names of their
+ * samples and all the events of a trace by its trace id.
+ * <p>
+ * The take methods wait for a matching event and remove it from those pending,
+ * so that a test can check nothing it didn't expect was reported. The events of
+ * a trace are only looked up, as they are taken by type.
+ * <p>
+ * Any number of threads can wait at once, each waiter is woken when an event
+ * arrives, and the lock is only held to index and look up, never while parsing.
+ */
+public final class EventStore {
+    public static final String METADATA = "metadata";
+    public static final String TRANSACTION = "transaction";
+    public static final String SPAN = "span";
+    public static final String ERROR = "error";
+    public static final String METRICSET = "metricset";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition added = lock.newCondition();
+    private final Map<String, Pending> byType = new HashMap<>();
+    private final Map<String, Pending> transactionsByName = new HashMap<>();
+    private final Map<String, Pending> metricsetsBySample = new HashMap<>();
+    private final Map<String, List<JsonNode>> byTraceId = new HashMap<>();
+
+    void add(String type, JsonNode event) {
+        Entry entry = new Entry(type, event);
+        lock.lock();
+        try {
+            pending(byType, type).add(entry);
+            if (type.equals(TRANSACTION)) {
+                pending(transactionsByName, event.path("name").asText()).add(entry);
+            } else if (type.equals(METRICSET)) {
+                for (Iterator<String> samples = event.path("samples").fieldNames(); samples.hasNext(); ) {
+                    pending(metricsetsBySample, samples.next()).add(entry);
+                }
+            }
+            String traceId = event.path("trace_id").asText(null);
+            if (traceId != null) {
+                byTraceId.computeIfAbsent(traceId, id -> new ArrayList<>()).add(event);
+            }
+            added.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events of the type received and not yet taken
+     */
+    public int count(String type) {
+        lock.lock();
+        try {
+            Pending pending = byType.get(type);
+            return pending == null ? 0 : pending.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the events of the type received and not yet taken, in the order they arrived
+     */
+    public List<JsonNode> events(String type) {
+        lock.lock();
+        try {
+            List<JsonNode> events = new ArrayList<>();
+            Pending pending = byType.get(type);
+            if (pending != null) {
+                for (Entry entry : pending.entries) {
+                    if (!entry.taken) {
+                        events.add(entry.event);
+                    }
+                }
+            }
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for there to be more than index events of the type not yet taken,
+     * and takes the one at index, counting in the order they arrived
+     *
+     * @throws TimeoutException if there aren't enough events within the timeout
+     */
+    public JsonNode take(String type, int index, long timeoutMillis) throws TimeoutException {
+        return await(timeoutMillis, () -> take(find(byType.get(type), index, event -> true)),
+                "a " + type + " at index " + index);
+    }
+
+    /**
+     * Waits for, and takes, the first transaction with the name not yet taken
+     *
+     * @throws TimeoutException if there is no such transaction within the timeout
+     */
+    public JsonNode takeTransaction(String name, long timeoutMillis) throws TimeoutException {
+        return await(timeoutMillis, () -> take(find(transactionsByName.get(name), 0, event -> true)),
+                "a transaction named \"" + name + "\"");
+    }
+
+    /**
+     * Waits for, and takes, the first metricset not yet taken that has a sample
+     * with the name and matches, eg on its tags or on the value of the sample
+     *
+     * @throws TimeoutException if there is no such metricset within the timeout
+     */
+    public JsonNode takeMetricset(String sampleName, Predicate<JsonNode> matching, long timeoutMillis) throws TimeoutException {
+        return await(timeoutMillis, () -> take(find(metricsetsBySample.get(sampleName), 0, matching)),
+                "a matching metricset with the sample \"" + sampleName + "\"");
+    }
+
+    /**
+     * Waits for at least count events of the trace, of any type and taken or not
+     *
+     * @return all the events of the trace received so far, in the order they arrived
+     * @throws TimeoutException if there aren't enough events within the timeout
+     */
+    public List<JsonNode> awaitTrace(String traceId, int count, long timeoutMillis) throws TimeoutException {
+        return await(timeoutMillis, () -> {
+            List<JsonNode> events = byTraceId.get(traceId);
+            return events != null && events.size() >= count ? new ArrayList<>(events) : null;
+        }, count + " events of the trace " + traceId);
+    }
+
+    /**
+     * Forgets all the events received so far
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            byType.clear();
+            transactionsByName.clear();
+            metricsetsBySample.clear();
+            byTraceId.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param query run with the lock held, each time an event arrives, until it returns non-null
+     */
+    private <T> T await(long timeoutMillis, Supplier<T> query, String awaited) throws TimeoutException {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            T found;
+            while ((found = query.get()) == null) {
+                if (remainingNanos <= 0) {
+                    throw new TimeoutException("The apm server did not receive " + awaited + " within " + timeoutMillis + "ms");
+                }
+                try {
+                    remainingNanos = added.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TimeoutException("Interrupted while waiting for " + awaited);
+                }
+            }
+            return found;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Pending pending(Map<String, Pending> index, String key) {
+        return index.computeIfAbsent(key, k -> new Pending());
+    }
+
+    /**
+     * @return the index'th entry not yet taken that matches, or null if there isn't one yet
+     */
+    private static Entry find(Pending pending, int index, Predicate<JsonNode> matching) {
+        if (pending == null) {
+            return null;
+        }
+        pending.dropTakenHead();
+        int matched = 0;
+        for (Entry entry : pending.entries) {
+            if (!entry.taken && matching.test(entry.event) && matched++ == index) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private JsonNode take(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        // left in the other indexes, which skip it from now on
+        entry.taken = true;
+        byType.get(entry.type).size--;
+        return entry.event;
+    }
+
+    private static final class Entry {
+        final String type;
+        final JsonNode event;
+        boolean taken;
+
+        Entry(String type, JsonNode event) {
+            this.type = type;
+            this.event = event;
+        }
+    }
+
+    /**
+     * The entries of one type or key in the order they arrived. Taken entries
+     * are dropped once they reach the head, so taking the oldest is O(1)
+     */
+    private static final class Pending {
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        // of the entries not yet taken, only kept up to date in byType
+        int size;
+
+        void add(Entry entry) {
+            entries.add(entry);
+            size++;
+        }
+
+        void dropTakenHead() {
+            while (!entries.isEmpty() && entries.peekFirst().taken) {
+                entries.pollFirst();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package co.elastic.apm.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventStoreTest {
+    private static final ObjectMapper Mapper = new ObjectMapper();
+
+    private final EventStore events = new EventStore();
+
+    @Test
+    void testConcurrentWaitersOnDifferentNamesEachGetTheirOwn() throws Exception {
+        CountDownLatch waiting = new CountDownLatch(2);
+        CompletableFuture<JsonNode> first = CompletableFuture.supplyAsync(() -> takeTransaction("GET /first", waiting));
+        CompletableFuture<JsonNode> second = CompletableFuture.supplyAsync(() -> takeTransaction("GET /second", waiting));
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+        // in the opposite order to the waiters, and with one neither is waiting for
+        events.add(EventStore.TRANSACTION, transaction("GET /other", "1"));
+        events.add(EventStore.TRANSACTION, transaction("GET /second", "2"));
+        events.add(EventStore.TRANSACTION, transaction("GET /first", "3"));
+        assertEquals("3", first.get(5, TimeUnit.SECONDS).get("trace_id").asText());
+        assertEquals("2", second.get(5, TimeUnit.SECONDS).get("trace_id").asText());
+        assertEquals(1, events.count(EventStore.TRANSACTION));
+    }
+
+    @Test
+    void testTakeTimesOutWhenNothingArrives() throws IOException {
+        events.add(EventStore.TRANSACTION, transaction("GET /other", "1"));
+        long start = System.nanoTime();
+        TimeoutException e = assertThrows(TimeoutException.class, () -> events.takeTransaction("GET /missing", 100));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(e.getMessage().contains("GET /missing"), e.getMessage());
+        assertThrows(TimeoutException.class, () -> events.take(EventStore.TRANSACTION, 1, 0));
+        // nothing was taken by the waits that timed out
+        assertEquals(1, events.count(EventStore.TRANSACTION));
+    }
+
+    @Test
+    void testTakeByIndexSkipsTransactionsTakenByName() throws Exception {
+        events.add(EventStore.TRANSACTION, transaction("GET /a", "1"));
+        events.add(EventStore.TRANSACTION, transaction("GET /b", "2"));
+        events.add(EventStore.TRANSACTION, transaction("GET /c", "3"));
+        assertEquals("2", events.takeTransaction("GET /b", 0).get("trace_id").asText());
+        // the indexes count only the transactions not yet taken
+        assertEquals("3", events.take(EventStore.TRANSACTION, 1, 0).get("trace_id").asText());
+        assertEquals("1", events.take(EventStore.TRANSACTION, 0, 0).get("trace_id").asText());
+        assertThrows(TimeoutException.class, () -> events.takeTransaction("GET /a", 0));
+        assertEquals(0, events.count(EventStore.TRANSACTION));
+    }
+
+    @Test
+    void testCountsFollowTakesThroughEveryIndex() throws Exception {
+        events.add(EventStore.TRANSACTION, transaction("GET /a", "1"));
+        events.add(EventStore.TRANSACTION, transaction("GET /b", "1"));
+        events.add(EventStore.METRICSET, metricset("{\"page_views\":{\"value\":1},\"page_counter\":{\"value\":2}}"));
+        events.add(EventStore.METRICSET, metricset("{\"page_views\":{\"value\":3}}"));
+        assertEquals(2, events.count(EventStore.TRANSACTION));
+        assertEquals(2, events.count(EventStore.METRICSET));
+
+        events.takeTransaction("GET /b", 0);
+        assertEquals(1, events.count(EventStore.TRANSACTION));
+        assertEquals("GET /a", events.events(EventStore.TRANSACTION).get(0).get("name").asText());
+
+        JsonNode both = events.takeMetricset("page_counter", m -> true, 0);
+        assertEquals(1, events.count(EventStore.METRICSET));
+        // taken through one sample's index, so gone from the other sample's index too
+        JsonNode pageViews = events.takeMetricset("page_views", m -> true, 0);
+        assertFalse(pageViews.get("samples").has("page_counter"));
+        assertTrue(both.get("samples").has("page_views"));
+        assertEquals(0, events.count(EventStore.METRICSET));
+        assertTrue(events.events(EventStore.METRICSET).isEmpty());
+
+        // the events of a trace are kept, whether taken or not
+        List<JsonNode> trace = events.awaitTrace("1", 2, 0);
+        assertEquals(2, trace.size());
+        events.clear();
+        assertEquals(0, events.count(EventStore.TRANSACTION));
+        assertThrows(TimeoutException.class, () -> events.awaitTrace("1", 1, 0));
+    }
+
+    private JsonNode takeTransaction(String name, CountDownLatch waiting) {
+        waiting.countDown();
+        try {
+            return events.takeTransaction(name, 5000);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonNode transaction(String name, String traceId) throws IOException {
+        return Mapper.readTree("{\"name\":\"" + name + "\",\"trace_id\":\"" + traceId + "\"}");
+    }
+
+    private static JsonNode metricset(String samples) throws IOException {
+        return Mapper.readTree("{\"samples\":" + samples + "}");
+    }
+}
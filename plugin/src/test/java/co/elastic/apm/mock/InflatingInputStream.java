@@ -0,0 +1,255 @@
+package co.elastic.apm.mock;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a `Content-Encoding: deflate` (zlib) or `gzip` request body as it
+ * is read. Unlike InflaterInputStream and GZIPInputStream, which allocate a new
+ * Inflater (and its native memory) and buffer for each stream, this borrows them
+ * from pools shared by all the exchanges, and gives them back on close().
+ * Closing this leaves the compressed body open, for the caller to read to the
+ * end if decompressing it failed, and close.
+ * <p>
+ * Only the first member of a gzip body is read, which is all an agent sends.
+ */
+final class InflatingInputStream extends InputStream {
+    private static final int BufferSize = 8192;
+    private static final Pool<byte[]> Buffers = new Pool<>();
+    private static final Pool<Inflater> ZlibInflaters = new Pool<>();
+    // gzip has its own header and trailer around raw deflate data, so needs no zlib wrapper
+    private static final Pool<Inflater> RawInflaters = new Pool<>();
+
+    private static final int GzipMagic = 0x8b1f;
+    private static final int GzipDeflated = 8;
+    private static final int FlagHeaderCrc = 2;
+    private static final int FlagExtra = 4;
+    private static final int FlagName = 8;
+    private static final int FlagComment = 16;
+
+    private final InputStream source;
+    private final boolean gzip;
+    private final Inflater inflater;
+    private final CRC32 crc;
+    private final byte[] buf;
+    // for read(), so reading a byte at a time doesn't allocate an array per byte
+    private final byte[] single = new byte[1];
+    // the bytes of buf not yet given to the inflater or read as the gzip header or trailer
+    private int pos;
+    private int len;
+    private boolean eof;
+    private boolean closed;
+
+    private InflatingInputStream(InputStream source, boolean gzip) {
+        this.source = source;
+        this.gzip = gzip;
+        Pool<Inflater> inflaters = gzip ? RawInflaters : ZlibInflaters;
+        Inflater pooledInflater = inflaters.poll();
+        this.inflater = pooledInflater != null ? pooledInflater : new Inflater(gzip);
+        this.crc = gzip ? new CRC32() : null;
+        byte[] pooledBuffer = Buffers.poll();
+        this.buf = pooledBuffer != null ? pooledBuffer : new byte[BufferSize];
+    }
+
+    /**
+     * @param contentEncoding the value of the Content-Encoding header, or null if there was none
+     * @return the body to read, decompressed if it needs to be
+     * @throws ZipException if the encoding isn't supported, or the gzip header is invalid
+     */
+    static InputStream decoding(InputStream body, String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.isEmpty() || contentEncoding.equalsIgnoreCase("identity")) {
+            return body;
+        }
+        boolean gzip;
+        if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            gzip = true;
+        } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+            gzip = false;
+        } else {
+            throw new ZipException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+        InflatingInputStream inflating = new InflatingInputStream(body, gzip);
+        if (gzip) {
+            try {
+                inflating.readGzipHeader();
+            } catch (IOException e) {
+                inflating.close();
+                throw e;
+            }
+        }
+        return inflating;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int n) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (eof) {
+            return -1;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        try {
+            int inflated;
+            while ((inflated = inflater.inflate(b, off, n)) == 0) {
+                if (inflater.finished()) {
+                    readTrailer();
+                    eof = true;
+                    return -1;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Compressed data needs a preset dictionary");
+                }
+                if (inflater.needsInput()) {
+                    if (pos == len && !fill()) {
+                        throw new EOFException("Unexpected end of compressed data");
+                    }
+                    inflater.setInput(buf, pos, len - pos);
+                    pos = len;
+                }
+            }
+            if (crc != null) {
+                crc.update(b, off, inflated);
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the inflater and buffer to their pools, so this must not be used
+     * afterwards. The compressed body is left open
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.reset();
+        if (!(gzip ? RawInflaters : ZlibInflaters).offer(inflater)) {
+            inflater.end();
+        }
+        Buffers.offer(buf);
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readUnsignedShort() != GzipMagic) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (readUnsignedByte() != GzipDeflated) {
+            throw new ZipException("Unsupported gzip compression method");
+        }
+        int flags = readUnsignedByte();
+        skip(6); // modification time, extra flags, operating system
+        if ((flags & FlagExtra) != 0) {
+            skip(readUnsignedShort());
+        }
+        if ((flags & FlagName) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FlagComment) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FlagHeaderCrc) != 0) {
+            skip(2);
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        // what the inflater was given but didn't need is the start of the trailer
+        pos = len - inflater.getRemaining();
+        if (!gzip) {
+            return; // zlib checks its own Adler-32 trailer
+        }
+        long expectedCrc = readUnsignedInt();
+        long expectedSize = readUnsignedInt();
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("Corrupt gzip data, the CRC doesn't match");
+        }
+        if (expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt gzip data, the size doesn't match");
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int n = source.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        len = n;
+        return true;
+    }
+
+    private int readUnsignedByte() throws IOException {
+        if (pos == len && !fill()) {
+            throw new EOFException("Unexpected end of gzip data");
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return readUnsignedByte() | (readUnsignedByte() << 8);
+    }
+
+    private long readUnsignedInt() throws IOException {
+        return readUnsignedShort() | ((long) readUnsignedShort() << 16);
+    }
+
+    private void skip(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUnsignedByte();
+        }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        int b;
+        do {
+            b = readUnsignedByte();
+        } while (b != 0);
+    }
+
+    /**
+     * A bounded pool, so a burst of concurrent requests doesn't keep
+     * their inflaters and buffers alive afterwards
+     */
+    private static final class Pool<T> {
+        private static final int MaxPooled = 64;
+        private final Queue<T> pooled = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = pooled.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        boolean offer(T t) {
+            if (size.incrementAndGet() > MaxPooled) {
+                size.decrementAndGet();
+                return false;
+            }
+            pooled.offer(t);
+            return true;
+        }
+    }
+}
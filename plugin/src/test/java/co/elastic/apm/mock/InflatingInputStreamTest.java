@@ -0,0 +1,159 @@
+package co.elastic.apm.mock;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class InflatingInputStreamTest {
+    private static final byte[] EVENTS = ("{\"metadata\":{}}\n{\"transaction\":{\"name\":\"GET /nothing\"}}\n")
+            .repeat(500).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void testGzipFromTheJdkIsDecompressed() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(EVENTS);
+        }
+        assertArrayEquals(EVENTS, readAll(compressed.toByteArray(), "gzip"));
+    }
+
+    @Test
+    void testGzipHeaderFieldsAreSkipped() throws IOException {
+        // FEXTRA, FNAME, FCOMMENT and FHCRC
+        byte[] gzip = gzip(EVENTS, 4 | 8 | 16 | 2);
+        assertArrayEquals(EVENTS, readAll(gzip, "gzip"));
+        assertArrayEquals(EVENTS, readAll(gzip, "x-gzip"));
+    }
+
+    @Test
+    void testDeflateIsDecompressed() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed)) {
+            deflate.write(EVENTS);
+        }
+        assertArrayEquals(EVENTS, readAll(compressed.toByteArray(), "deflate"));
+    }
+
+    @Test
+    void testReadingAByteAtATime() throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream body = InflatingInputStream.decoding(new ByteArrayInputStream(gzip(EVENTS, 0)), "gzip")) {
+            int b;
+            while ((b = body.read()) != -1) {
+                read.write(b);
+            }
+        }
+        assertArrayEquals(EVENTS, read.toByteArray());
+    }
+
+    @Test
+    void testCorruptCrcIsRejected() {
+        byte[] gzip = gzip(EVENTS, 0);
+        // the CRC is the first 4 bytes of the 8 byte trailer
+        gzip[gzip.length - 8] ^= 1;
+        ZipException e = assertThrows(ZipException.class, () -> readAll(gzip, "gzip"));
+        assertEquals("Corrupt gzip data, the CRC doesn't match", e.getMessage());
+    }
+
+    @Test
+    void testTruncatedBodyIsRejected() {
+        byte[] gzip = gzip(EVENTS, 0);
+        // in the compressed data, then in the trailer, then in the header
+        assertThrows(EOFException.class, () -> readAll(Arrays.copyOf(gzip, gzip.length / 2), "gzip"));
+        assertThrows(EOFException.class, () -> readAll(Arrays.copyOf(gzip, gzip.length - 3), "gzip"));
+        assertThrows(EOFException.class, () -> readAll(Arrays.copyOf(gzip, 5), "gzip"));
+    }
+
+    @Test
+    void testUnsupportedEncodingIsRejected() {
+        assertThrows(ZipException.class, () -> InflatingInputStream.decoding(new ByteArrayInputStream(EVENTS), "br"));
+        assertThrows(ZipException.class, () -> readAll(EVENTS, "gzip"));
+    }
+
+    @Test
+    void testIdentityIsTheBodyItself() throws IOException {
+        InputStream body = new ByteArrayInputStream(EVENTS);
+        assertSame(body, InflatingInputStream.decoding(body, null));
+        assertSame(body, InflatingInputStream.decoding(body, "identity"));
+    }
+
+    @Test
+    void testClosingLeavesTheBodyOpen() throws IOException {
+        boolean[] closed = new boolean[1];
+        InputStream body = new ByteArrayInputStream(gzip(EVENTS, 0)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        InflatingInputStream.decoding(body, "gzip").close();
+        assertFalse(closed[0]);
+    }
+
+    private static byte[] readAll(byte[] body, String contentEncoding) throws IOException {
+        try (InputStream decoded = InflatingInputStream.decoding(new ByteArrayInputStream(body), contentEncoding)) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    /**
+     * Builds the gzip member by hand, as GZIPOutputStream never sets any of the optional header fields
+     */
+    private static byte[] gzip(byte[] data, int flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{0x1f, (byte) 0x8b, 8, (byte) flags, 0, 0, 0, 0, 0, (byte) 255});
+        if ((flags & 4) != 0) {
+            byte[] extra = {'A', 'P', 2, 0, 1, 2};
+            writeShort(out, extra.length);
+            out.writeBytes(extra);
+        }
+        if ((flags & 8) != 0) {
+            out.writeBytes("events.ndjson\0".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if ((flags & 16) != 0) {
+            out.writeBytes("a comment\0".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if ((flags & 2) != 0) {
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(out.toByteArray());
+            writeShort(out, (int) headerCrc.getValue());
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeShort(out, (int) crc.getValue());
+        writeShort(out, (int) (crc.getValue() >>> 16));
+        writeShort(out, data.length);
+        writeShort(out, data.length >>> 16);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+}
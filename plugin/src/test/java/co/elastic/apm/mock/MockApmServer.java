@@ -1,30 +1,58 @@
 package co.elastic.apm.mock;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
 
 /**
  * This is a server which just accepts lines of JSON code and if the JSON
- * is valid and the root node is "transaction", then adds that JSON object
- * to a transaction list which is accessible externally to the class.
+ * is valid, adds each event (transaction, span, error, metricset or metadata)
+ * to an {@link EventStore}, which is accessible externally to the class.
  *
  * The Elastic agent sends lines of JSON code, and so this mock server
  * can be used as a basic APM server for testing.
  *
- * The HTTP server used is the JDK embedded com.sun.net.httpserver
+ * The request body is parsed as a stream of events (NDJSON, one JSON object
+ * per line, eg `{"transaction": {...}}`) as it arrives, with one shared
+ * ObjectMapper. Each event is routed by its first field name, and only the
+ * events kept (those of the types the store knows) are built into a JsonNode
+ * tree, the rest are skipped over. Set {@link #setLogEvents} or the system property
+ * `mock_apm_server.log_events` to print each event received.
+ *
+ * Bodies sent with `Content-Encoding: deflate` or `gzip`, as agents send them,
+ * are decompressed as they are read (see {@link InflatingInputStream}). The
+ * bytes received on each connection are counted both as sent and decompressed,
+ * see {@link #getIntakeBytes()}, so tests can check what reporting costs on the wire.
+ *
+ * The HTTP server used is the JDK embedded com.sun.net.httpserver, with a
+ * pool of threads so the intake requests of several agent connections are
+ * handled in parallel. All the state is per instance, so several servers can
+ * run side by side in one JVM.
  */
 public class MockApmServer {
     /**
@@ -42,26 +70,70 @@ public class MockApmServer {
         server.blockUntilStopped();
     }
 
-    private static volatile HttpServer TheServerInstance;
+    private static final AtomicInteger ThreadCount = new AtomicInteger();
+    // thread-safe once configured, so shared by all the exchanges
+    private static final ObjectMapper Mapper = new ObjectMapper();
+
+    private volatile HttpServer thisServer;
+    private ExecutorService executor;
+    private volatile boolean logEvents = Boolean.getBoolean("mock_apm_server.log_events");
+
+    // replaced on each start(), as the tests stop and restart the same instance
+    private volatile CompletableFuture<Integer> boundPort = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> stopped = new CompletableFuture<>();
 
-    private final List<JsonNode> transactions = new ArrayList<>();
-    private final List<JsonNode> metricsets = new ArrayList<>();
+    private final EventStore events = new EventStore();
+    // keyed by the agent's end of the connection
+    private final Map<InetSocketAddress, ByteCounts> intakeBytes = new ConcurrentHashMap<>();
+
+    /**
+     * @param logEvents true to print every event received, which is useful
+     *                  for debugging, but slows down the intake under load
+     */
+    public void setLogEvents(boolean logEvents) {
+        this.logEvents = logEvents;
+    }
+
+    /**
+     * @return the events received, to look up or wait for
+     */
+    public EventStore getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the intake bytes received on each connection so far, keyed by the
+     *         address of the agent's end of the connection
+     */
+    public Map<InetSocketAddress, ByteCounts> getIntakeBytesByConnection() {
+        return new HashMap<>(intakeBytes);
+    }
+
+    /**
+     * @return the intake bytes received so far on all the connections together
+     */
+    public ByteCounts getIntakeBytes() {
+        ByteCounts total = new ByteCounts();
+        for (ByteCounts connection : intakeBytes.values()) {
+            total.compressed.addAndGet(connection.compressed());
+            total.uncompressed.addAndGet(connection.uncompressed());
+        }
+        return total;
+    }
 
     /**
      * A count of the number of transactions received and not yet removed
      * @return the number of transactions received and not yet removed
      */
     public int getTransactionCount() {
-        synchronized (transactions) {
-            return transactions.size();
-        }
+        return events.count(EventStore.TRANSACTION);
     }
 
     /**
      * Gets the transaction at index i if it exists within the timeout
      * specified, and removes it from the transaction list.
-     * If it doesn't exist within the timeout period, an
-     * IllegalArgumentException is thrown
+     * If it doesn't exist within the timeout period, a
+     * TimeoutException is thrown
      * @param i - the index to retrieve a transaction from
      * @param timeOutInMillis - millisecond timeout to wait for the
      *                        transaction at index i to exist
@@ -72,59 +144,19 @@ public class MockApmServer {
     public JsonNode getAndRemoveTransaction(int i, long timeOutInMillis) throws TimeoutException {
         //because the agent writes to the server asynchronously,
         //any transaction created in a client is not here immediately
-        long start = System.currentTimeMillis();
-        long elapsedTime = 0;
-        while (elapsedTime < timeOutInMillis) {
-            synchronized (transactions) {
-                if (transactions.size() > i) {
-                    break;
-                }
-                if (timeOutInMillis-elapsedTime > 0) {
-                    try {
-                        transactions.wait(timeOutInMillis - elapsedTime);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                elapsedTime = System.currentTimeMillis() - start;
-            }
-        }
-        synchronized (transactions) {
-            if (transactions.size() <= i) {
-                throw new TimeoutException("The apm server does not have a transaction at index " + i);
-            }
-        }
-        synchronized (transactions) {
-            return transactions.remove(i);
-        }
+        return events.take(EventStore.TRANSACTION, i, timeOutInMillis);
     }
 
-    public JsonNode popMetricset(long timeOutInMillis) throws TimeoutException {
-        //because the agent writes to the server asynchronously,
-        //any metricset created in a client is not here immediately
-        long start = System.currentTimeMillis();
-        long elapsedTime = 0;
-        while (elapsedTime < timeOutInMillis) {
-            synchronized (metricsets) {
-                if (metricsets.size() > 0) {
-                    break;
-                }
-                if (timeOutInMillis-elapsedTime > 0) {
-                    try {
-                        metricsets.wait(timeOutInMillis - elapsedTime);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                elapsedTime = System.currentTimeMillis() - start;
-            }
-        }
-        if (timeOutInMillis-elapsedTime <= 0) {
+    /**
+     * @return the oldest metricset not yet removed, waiting for one up to the
+     *         timeout, or null if there is none by then
+     */
+    public JsonNode popMetricset(long timeOutInMillis) {
+        try {
+            return events.take(EventStore.METRICSET, 0, timeOutInMillis);
+        } catch (TimeoutException e) {
             return null;
         }
-        synchronized (metricsets) {
-            return metricsets.remove(0);
-        }
     }
 
     /**
@@ -133,83 +165,147 @@ public class MockApmServer {
      * @throws IOException
      */
     public synchronized int start() throws IOException {
-        if (TheServerInstance != null) {
-            throw new IOException("MockApmServer: Ooops, you can't start this instance more than once");
+        if (thisServer != null) {
+            throw new IOException("MockApmServer: Ooops, you can't start this instance while it is running");
         }
+        boundPort = new CompletableFuture<>();
+        stopped = new CompletableFuture<>();
         InetSocketAddress addr = new InetSocketAddress("0.0.0.0", 0);
-        HttpServer server = HttpServer.create(addr, 10);
+        HttpServer server;
+        try {
+            server = HttpServer.create(addr, 10);
+        } catch (IOException | RuntimeException e) {
+            boundPort.completeExceptionally(e);
+            stopped.complete(null);
+            throw e;
+        }
         server.createContext("/exit", new ExitHandler());
         server.createContext("/", new RootHandler());
+        // named, to tell the servers' threads from the agent's and the application's
+        executor = Executors.newCachedThreadPool(runnable ->
+                new Thread(runnable, "MockApmServer-" + ThreadCount.incrementAndGet()));
+        server.setExecutor(executor);
 
         server.start();
-        TheServerInstance = server;
+        thisServer = server;
         System.out.println("MockApmServer started on port "+server.getAddress().getPort());
+        boundPort.complete(server.getAddress().getPort());
         return server.getAddress().getPort();
     }
 
     /**
      * Stop the server gracefully if possible
      */
-    public synchronized void stop() {
-        TheServerInstance.stop(1);
-        TheServerInstance = null;
+    public void stop() {
+        stop(1);
+    }
+
+    private synchronized void stop(int delaySeconds) {
+        HttpServer server = thisServer;
+        if (server != null) {
+            server.stop(delaySeconds);
+            executor.shutdown();
+            thisServer = null;
+        }
+        stopped.complete(null);
+    }
+
+    /**
+     * @return a future completed with the port once the server is ready to accept messages
+     */
+    public CompletableFuture<Integer> boundPort() {
+        return boundPort.copy();
+    }
+
+    /**
+     * @return a future completed once the server is terminated
+     */
+    public CompletableFuture<Void> stopped() {
+        return stopped.copy();
     }
 
     class RootHandler implements HttpHandler {
         public void handle(HttpExchange t) {
             try {
-                InputStream body = t.getRequestBody();
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                byte[] buffer = new byte[8*1024];
-                int lengthRead;
-                while((lengthRead = body.read(buffer)) > 0) {
-                    bytes.write(buffer, 0, lengthRead);
-                }
-                reportTransactionsAndMetrics(bytes.toString());
+                ByteCounts connectionBytes = intakeBytes.computeIfAbsent(t.getRemoteAddress(), address -> new ByteCounts());
                 String response = "{}";
-                t.sendResponseHeaders(200, response.length());
+                int status = 200;
+                try (InputStream sent = new CountingInputStream(t.getRequestBody(), connectionBytes.compressed)) {
+                    try (InputStream body = InflatingInputStream.decoding(sent, t.getRequestHeaders().getFirst("Content-Encoding"))) {
+                        reportEvents(new CountingInputStream(body, connectionBytes.uncompressed));
+                    } catch (ZipException | EOFException e) {
+                        System.out.println("MockApmServer: Can't decompress the request: " + e.getMessage());
+                        response = Mapper.createObjectNode().put("error", e.getMessage()).toString();
+                        status = 400;
+                        // read to the end, so the agent can go on using the connection
+                        sent.transferTo(OutputStream.nullOutputStream());
+                    }
+                }
+                byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+                t.sendResponseHeaders(status, responseBytes.length);
                 OutputStream os = t.getResponseBody();
-                os.write(response.getBytes());
+                os.write(responseBytes);
                 os.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
-        private void reportTransactionsAndMetrics(String json) {
-            String[] lines = json.split("[\r\n]");
-            for (String line: lines) {
-                reportTransactionOrMetric(line);
-            }
-        }
-        private void reportTransactionOrMetric(String line) {
-            System.out.println("MockApmServer reading JSON objects: "+ line);
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode messageRootNode = null;
-            try {
-                messageRootNode = objectMapper.readTree(line);
-                JsonNode transactionNode = messageRootNode.get("transaction");
-                if (transactionNode != null) {
-                    synchronized (transactions) {
-                        transactions.add(transactionNode);
-                        transactions.notify();
+        /**
+         * Parses the events as they are read, so those sent early in a long
+         * intake request are available before the request completes
+         */
+        private void reportEvents(InputStream body) throws IOException {
+            try (JsonParser parser = Mapper.getFactory().createParser(body)) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    if (token != JsonToken.START_OBJECT) {
+                        System.out.println("MockApmServer: Not an event: " + parser.getText());
+                        parser.skipChildren();
+                        continue;
                     }
-                }
-                JsonNode metricsetNode = messageRootNode.get("metricset");
-                if (metricsetNode != null) {
-                    synchronized (metricsets) {
-                        metricsets.add(metricsetNode);
-                        metricsets.notify();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String eventType = parser.getCurrentName();
+                        parser.nextToken();
+                        reportEvent(eventType, parser);
                     }
                 }
             } catch (JsonProcessingException e) {
-                System.out.println("Not JSON: "+line);
+                System.out.println("MockApmServer: Not JSON: " + e.getOriginalMessage());
                 e.printStackTrace();
             }
         }
+
+        /**
+         * @param parser positioned at the start of the event's value
+         */
+        private void reportEvent(String eventType, JsonParser parser) throws IOException {
+            switch (eventType) {
+                case EventStore.METADATA:
+                case EventStore.TRANSACTION:
+                case EventStore.SPAN:
+                case EventStore.ERROR:
+                case EventStore.METRICSET: {
+                    JsonNode event = Mapper.readTree(parser);
+                    logEvent(eventType, event);
+                    events.add(eventType, event);
+                    break;
+                }
+                default:
+                    logEvent(eventType, null);
+                    parser.skipChildren();
+            }
+        }
+
+        private void logEvent(String eventType, JsonNode event) {
+            if (logEvents) {
+                System.out.println("MockApmServer reading JSON objects: {\"" + eventType + "\": "
+                        + (event == null ? "..." : event.toString()) + "}");
+            }
+        }
     }
 
-    static class ExitHandler implements HttpHandler {
+    class ExitHandler implements HttpHandler {
         private static final int STOP_TIME = 3;
 
         public void handle(HttpExchange t) {
@@ -220,24 +316,84 @@ public class MockApmServer {
                 OutputStream os = t.getResponseBody();
                 os.write(response.getBytes());
                 os.close();
-                TheServerInstance.stop(STOP_TIME);
-                TheServerInstance = null;
+                // stopping blocks while it waits for exchanges in progress, including
+                // this one, so it's called on another thread to let this exchange complete
+                CompletableFuture.runAsync(() -> stop(STOP_TIME));
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * The intake bytes received, as they were sent (compressed, if the agent
+     * compressed them) and as they were parsed, after any decompression
+     */
+    public static final class ByteCounts {
+        private final AtomicLong compressed = new AtomicLong();
+        private final AtomicLong uncompressed = new AtomicLong();
+
+        public long compressed() {
+            return compressed.get();
+        }
+
+        public long uncompressed() {
+            return uncompressed.get();
+        }
+
+        @Override
+        public String toString() {
+            return "ByteCounts{compressed=" + compressed() + ", uncompressed=" + uncompressed() + '}';
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+    }
+
     /**
      * Wait until the server is ready to accept messages
      */
     public void blockUntilReady() {
-        while (TheServerInstance == null) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
+        boundPort.join();
+    }
+
+    /**
+     * Wait until the server is ready to accept messages, up to the timeout
+     * @return true if it is ready, false if it still wasn't when the timeout expired
+     * @throws IOException if start() failed
+     */
+    public boolean blockUntilReady(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        try {
+            boundPort.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IOException("MockApmServer: start() failed", e.getCause());
         }
     }
 
@@ -245,12 +401,6 @@ public class MockApmServer {
      * Wait until the server is terminated
      */
     public void blockUntilStopped() {
-        while (TheServerInstance != null) {
-            try {
-                Thread.sleep(1L);
-            } catch (InterruptedException e) {
-                // do nothing, just enter the next sleep
-            }
-        }
+        stopped.join();
     }
 }
@@ -0,0 +1,136 @@
+package co.elastic.apm.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MockApmServerTest {
+    private static final String TRANSACTION = "{\"transaction\":{\"name\":\"GET /reused\",\"trace_id\":\"abc\"}}\n";
+
+    private MockApmServer server;
+    private int port;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new MockApmServer();
+        port = server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void testUnsupportedEncodingIsRejectedAndTheConnectionReused() throws IOException, TimeoutException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // the body is read to the end even though it can't be decoded
+            sendIntake(socket.getOutputStream(), "br", TRANSACTION.replace("reused", "rejected"));
+            String error = readResponse(input, 400);
+            assertTrue(error.contains("Unsupported Content-Encoding: br"), error);
+            sendIntake(socket.getOutputStream(), null, TRANSACTION);
+            readResponse(input, 200);
+        }
+        JsonNode transaction = server.getAndRemoveTransaction(0, 5000);
+        assertEquals("GET /reused", transaction.get("name").asText());
+        assertEquals(0, server.getTransactionCount());
+        assertEquals(1, server.getIntakeBytesByConnection().size());
+    }
+
+    @Test
+    void testServersSideBySideAreIndependent() throws Exception {
+        MockApmServer other = new MockApmServer();
+        int otherPort = other.start();
+        try {
+            assertNotEquals(port, otherPort);
+            // a running instance can't be started again
+            assertThrows(IOException.class, other::start);
+            sendIntake(otherPort, TRANSACTION.replace("reused", "other"));
+            sendIntake(port, TRANSACTION.replace("reused", "first"));
+            assertEquals("GET /other", other.getAndRemoveTransaction(0, 5000).get("name").asText());
+            assertEquals("GET /first", server.getAndRemoveTransaction(0, 5000).get("name").asText());
+
+            // a stopped instance can be started again, while the other carries on
+            server.stop();
+            server.stopped().get(5, TimeUnit.SECONDS);
+            port = server.start();
+            assertTrue(server.blockUntilReady(5, TimeUnit.SECONDS));
+            sendIntake(otherPort, TRANSACTION.replace("reused", "still_other"));
+            sendIntake(port, TRANSACTION.replace("reused", "restarted"));
+            assertEquals("GET /still_other", other.getAndRemoveTransaction(0, 5000).get("name").asText());
+            assertEquals("GET /restarted", server.getAndRemoveTransaction(0, 5000).get("name").asText());
+            assertEquals(0, other.getTransactionCount());
+            assertEquals(0, server.getTransactionCount());
+        } finally {
+            other.stop();
+        }
+    }
+
+    private static void sendIntake(int port, String events) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            sendIntake(socket.getOutputStream(), null, events);
+            readResponse(new DataInputStream(new BufferedInputStream(socket.getInputStream())), 200);
+        }
+    }
+
+    private static void sendIntake(OutputStream output, String contentEncoding, String events) throws IOException {
+        byte[] body = events.getBytes(StandardCharsets.UTF_8);
+        String request = "POST /intake/v2/events HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/x-ndjson\r\n"
+                + (contentEncoding == null ? "" : "Content-Encoding: " + contentEncoding + "\r\n")
+                + "Content-Length: " + body.length + "\r\n\r\n";
+        output.write(request.getBytes(StandardCharsets.US_ASCII));
+        output.write(body);
+        output.flush();
+    }
+
+    /**
+     * Reads one response, using its Content-Length to find where it ends
+     *
+     * @return the body of the response
+     */
+    private static String readResponse(DataInputStream input, int expectedStatus) throws IOException {
+        String statusLine = readLine(input);
+        assertTrue(statusLine.startsWith("HTTP/1.1 " + expectedStatus + " "), statusLine);
+        int contentLength = -1;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+            }
+        }
+        byte[] body = new byte[contentLength];
+        input.readFully(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
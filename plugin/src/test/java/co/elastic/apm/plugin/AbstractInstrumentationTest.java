@@ -22,21 +22,31 @@ public class AbstractInstrumentationTest {
         ApmServer.blockUntilReady();
 
         //Set properties before starting the agent
+        setAgentProperties(mockApmServerPort);
+
+        //Start the agent
+        ElasticApmAttacher.attach();
+    }
+
+    /**
+     * Sets the agent options used by the tests, reporting to the mock APM server
+     * listening on the given port. These need to be set before the agent is attached
+     */
+    public static void setAgentProperties(int mockApmServerPort) {
         setProperty("elastic.apm.server_url", "http://localhost:"+mockApmServerPort);
         setProperty("elastic.apm.plugins_dir", "target"); //to load the plugin
         setProperty("elastic.apm.enable_experimental_instrumentations", "true"); //need for Otel in 1.30
         setProperty("elastic.apm.api_request_size", "100b"); //flush quickly - inadvisably short outside tests
         setProperty("elastic.apm.report_sync", "true"); //DON'T USE EXCEPT IN TEST!!
         setProperty("elastic.apm.metrics_interval", "1s"); //flush metrics quickly - inadvisably short outside tests
+        //the HttpHandlers of the MockApmServer in this JVM aren't traced, as the
+        //default example_http_handler_prefix only matches the example application
 
         setProperty("elastic.apm.log_level", "DEBUG");
         //Setting this makes the agent startup faster
         String instrumentations = "micrometer, opentelemetry, opentelemetry-metrics, "+String.join(", ",
                 new ExampleHttpServerInstrumentation().getInstrumentationGroupNames());
         setProperty("elastic.apm.enable_instrumentations", instrumentations);
-
-        //Start the agent
-        ElasticApmAttacher.attach();
     }
 
     @AfterAll
@@ -0,0 +1,189 @@
+package co.elastic.apm.plugin;
+
+import co.elastic.apm.attach.ElasticApmAttacher;
+import co.elastic.apm.mock.MockApmServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures what the plugin costs at startup, rather than per request (for that see
+ * the benchmarks): how long attaching the agent takes, how long loading
+ * `ExampleBasicHttpServer` takes once the agent is there to transform it, and the
+ * size of the bytecode of its `handleRequest` methods before and after instrumentation.
+ * <p>
+ * Run it once as is, and once with the argument `--no-agent` for the baseline load time.
+ * It needs the plugin jar built in `target`, like the integration tests.
+ * <p>
+ * The instrumented bytecode is taken from the class files Byte Buddy dumps when the
+ * `net.bytebuddy.dump` system property is set, which this sets to a temporary directory.
+ * The Code attributes are read directly from the class files, so this needs no
+ * bytecode library of its own.
+ */
+public class InstrumentationStartupHarness {
+    private static final String TARGET_CLASS = "co.elastic.apm.example.webserver.ExampleBasicHttpServer";
+    private static final String TARGET_METHOD = "handleRequest";
+
+    public static void main(String[] args) throws Exception {
+        boolean withAgent = args.length == 0 || !args[0].equals("--no-agent");
+        ClassLoader loader = InstrumentationStartupHarness.class.getClassLoader();
+        // read as a resource, so the class isn't loaded (and transformed) yet
+        byte[] original;
+        try (InputStream in = loader.getResourceAsStream(TARGET_CLASS.replace('.', '/') + ".class")) {
+            original = in.readAllBytes();
+        }
+        System.out.println(TARGET_METHOD + " bytecode before: " + codeLengths(original, TARGET_METHOD));
+
+        MockApmServer apmServer = null;
+        File dumpDir = null;
+        if (withAgent) {
+            apmServer = new MockApmServer();
+            int port = apmServer.start();
+            apmServer.blockUntilReady();
+            AbstractInstrumentationTest.setAgentProperties(port);
+            // the tests log at DEBUG, which would be measured too
+            System.setProperty("elastic.apm.log_level", "WARN");
+            dumpDir = Files.createTempDirectory("bytebuddy-dump").toFile();
+            System.setProperty("net.bytebuddy.dump", dumpDir.getAbsolutePath());
+
+            long start = System.nanoTime();
+            ElasticApmAttacher.attach();
+            System.out.println("agent attach: " + millisSince(start) + " ms");
+        }
+
+        long start = System.nanoTime();
+        Class.forName(TARGET_CLASS, false, loader);
+        System.out.println("load " + TARGET_CLASS + (withAgent ? " (with transformation)" : "")
+                + ": " + millisSince(start) + " ms");
+
+        if (withAgent) {
+            byte[] instrumented = latestDump(dumpDir);
+            System.out.println(TARGET_METHOD + " bytecode after: "
+                    + (instrumented == null ? "unavailable, no class file was dumped" : codeLengths(instrumented, TARGET_METHOD)));
+            apmServer.stop();
+            AbstractInstrumentationTest.resetProperties();
+        }
+    }
+
+    private static String millisSince(long startNanos) {
+        return String.format("%.2f", (System.nanoTime() - startNanos) / 1_000_000.0);
+    }
+
+    /**
+     * Byte Buddy names each dumped file with the class name and a timestamp,
+     * and adds "-original" to the file holding the class before it was transformed
+     */
+    private static byte[] latestDump(File dumpDir) throws IOException {
+        File[] dumps = dumpDir.listFiles((dir, name) -> name.startsWith(TARGET_CLASS + ".") && !name.endsWith("-original"));
+        if (dumps == null || dumps.length == 0) {
+            return null;
+        }
+        File latest = dumps[0];
+        for (File dump : dumps) {
+            if (dump.getName().compareTo(latest.getName()) > 0) {
+                latest = dump;
+            }
+        }
+        return Files.readAllBytes(latest.toPath());
+    }
+
+    /**
+     * @return the length in bytes of the code of each method with the given name,
+     *         keyed by its descriptor
+     */
+    static Map<String, Integer> codeLengths(byte[] classFile, String methodName) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.skipBytes(4); // minor and major version
+        String[] utf8 = readUtf8Constants(in);
+        in.skipBytes(6); // access flags, this class, super class
+        in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            in.skipBytes(6); // access flags, name, descriptor
+            skipAttributes(in);
+        }
+        Map<String, Integer> lengths = new LinkedHashMap<>();
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.skipBytes(2); // access flags
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                String attributeName = utf8[in.readUnsignedShort()];
+                int length = in.readInt();
+                if (attributeName.equals("Code") && name.equals(methodName)) {
+                    in.skipBytes(4); // max stack, max locals
+                    lengths.put(descriptor, in.readInt());
+                    in.skipBytes(length - 8);
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Reads the constant pool, keeping only the Utf8 entries, which hold the names
+     *
+     * @return the Utf8 constants by their index in the pool, with null for other entries
+     */
+    private static String[] readUtf8Constants(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    i++; // these take two entries
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+        return utf8;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+}